@@ -34,15 +34,17 @@ import androidx.navigation.ui.AppBarConfiguration;
 import androidx.navigation.ui.NavigationUI;
 import com.example.homie.databinding.ActivityMainBinding;
 import com.example.homie.model.Device;
+import com.example.homie.repository.HomeStateStore;
 import com.example.homie.services.WebSocketService;
 import com.example.homie.ui.home.HomeViewModel;
 import com.example.homie.utils.SecurityManager;
-import com.google.gson.Gson;
+import com.example.homie.voice.VoiceCommand;
+import com.example.homie.voice.VoiceCommandManager;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements VoiceCommandManager.VoiceCommandListener {
     private static final String TAG = "MainActivity";
     // Match the ESP32 AP SSID here
     private static final String ESP32_SSID = "SmartHome_ESP32";
@@ -52,6 +54,7 @@ public class MainActivity extends AppCompatActivity {
     private boolean webSocketServiceBound = false;
     private HomeViewModel homeViewModel;
     private SecurityManager securityManager;
+    private VoiceCommandManager voiceCommandManager;
     private ConnectivityManager connectivityManager;
     private WifiManager wifiManager;
     private Network esp32Network = null;
@@ -59,7 +62,6 @@ public class MainActivity extends AppCompatActivity {
     private boolean isESP32NetworkBound = false;
     private View wifiStatusLight;
     private View esp32StatusLight;
-    private Gson gson = new Gson();
 
     private final ConnectivityManager.NetworkCallback esp32NetworkCallback = new ConnectivityManager.NetworkCallback() {
         @Override
@@ -77,6 +79,7 @@ public class MainActivity extends AppCompatActivity {
                 Log.w(TAG, "ESP32 network lost");
                 esp32Network = null;
                 isESP32NetworkBound = false;
+                notifyNetworkLost();
                 runOnUiThread(() -> {
                     isWifiConnected = false;
                     updateWifiStatusIndicator(false);
@@ -105,6 +108,7 @@ public class MainActivity extends AppCompatActivity {
             observeWebSocketStatus();
             // If we already bound to ESP32 network, tell service to try socket connect now
             if (isESP32NetworkBound && webSocketService != null) {
+                webSocketService.onNetworkAvailable();
                 webSocketService.requestInitialData();
             }
         }
@@ -141,6 +145,18 @@ public class MainActivity extends AppCompatActivity {
                 }
             });
 
+    private final ActivityResultLauncher<String> recordAudioPermissionLauncher = registerForActivityResult(
+            new ActivityResultContracts.RequestPermission(),
+            isGranted -> {
+                if (isGranted) {
+                    Log.d(TAG, "Record audio permission granted");
+                    voiceCommandManager.startListening();
+                } else {
+                    Log.w(TAG, "Record audio permission denied");
+                    Toast.makeText(this, "Microphone permission required for voice commands", Toast.LENGTH_LONG).show();
+                }
+            });
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -149,6 +165,7 @@ public class MainActivity extends AppCompatActivity {
 
         homeViewModel = new ViewModelProvider(this).get(HomeViewModel.class);
         securityManager = new SecurityManager(this);
+        HomeStateStore.getInstance().init(this);
         connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
 
@@ -161,6 +178,7 @@ public class MainActivity extends AppCompatActivity {
         }
 
         setupNavigation();
+        setupVoiceCommands();
         setupEnhancedWifiMonitoring();
         startWebSocketService();
         requestLocationPermission();
@@ -209,11 +227,20 @@ public class MainActivity extends AppCompatActivity {
             } else {
                 Log.d(TAG, "Disconnected from ESP32 WiFi network");
                 unbindFromESP32Network();
+                notifyNetworkLost();
                 updateESP32StatusIndicator(false); // Also disconnect ESP32 if WiFi drops
             }
         }
     }
 
+    // Stops reconnect attempts until the ESP32 network is back
+    private void notifyNetworkLost() {
+        WebSocketService service = webSocketService;
+        if (webSocketServiceBound && service != null) {
+            service.onNetworkLost();
+        }
+    }
+
     private boolean isConnectedToESP32WiFi() {
         if (wifiManager != null) {
             WifiInfo wifiInfo = wifiManager.getConnectionInfo();
@@ -253,8 +280,9 @@ public class MainActivity extends AppCompatActivity {
             // Proceed to bind process to this network
             esp32Network = network;
             bindToESP32Network(network);
-            // After binding, kick service to request data
+            // After binding, reconnect right away and request data
             if (webSocketServiceBound && webSocketService != null) {
+                webSocketService.onNetworkAvailable();
                 webSocketService.requestInitialData();
             }
         } catch (Exception e) {
@@ -330,6 +358,50 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void setupVoiceCommands() {
+        voiceCommandManager = new VoiceCommandManager(this);
+        voiceCommandManager.setVoiceCommandListener(this);
+        binding.fabVoice.setOnClickListener(v -> toggleVoiceRecognition());
+    }
+
+    private void toggleVoiceRecognition() {
+        if (ContextCompat.checkSelfPermission(this,
+                Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            recordAudioPermissionLauncher.launch(Manifest.permission.RECORD_AUDIO);
+            return;
+        }
+        if (voiceCommandManager.isListening()) {
+            voiceCommandManager.stopListening();
+        } else {
+            voiceCommandManager.startListening();
+        }
+    }
+
+    // Recognized commands go straight to the store; these only report back
+
+    @Override
+    public void onCommandRecognized(String command) {
+        logActivity("Voice command", command);
+    }
+
+    @Override
+    public void onCommandExecuted(VoiceCommand command) {
+        int count = command.getDeviceIds().size();
+        Toast.makeText(this, "\"" + command.getText() + "\" sent to " + count
+                + (count == 1 ? " device" : " devices"), Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public void onListeningStateChanged(boolean isListening) {
+        binding.fabVoice.setImageResource(isListening ? R.drawable.ic_mic_active : R.drawable.ic_mic);
+    }
+
+    @Override
+    public void onError(String error) {
+        binding.fabVoice.setImageResource(R.drawable.ic_mic);
+        Toast.makeText(this, "Voice error: " + error, Toast.LENGTH_SHORT).show();
+    }
+
     private void updateWifiStatusIndicator(boolean connected) {
         if (wifiStatusLight != null) {
             wifiStatusLight.setBackgroundResource(connected ? R.drawable.circle_green : R.drawable.circle_red);
@@ -376,14 +448,7 @@ public class MainActivity extends AppCompatActivity {
                 }
             });
 
-            webSocketService.getDeviceUpdates().observe(this, devices -> {
-                if (devices != null && !devices.isEmpty()) {
-                    Log.d(TAG, "Received " + devices.size() + " device updates from ESP32");
-                    homeViewModel.updateDevicesFromESP32(devices);
-                    saveDevicesToLocal(devices);
-                }
-            });
-
+            homeViewModel.setSensorHistory(webSocketService.getSensorHistory());
             webSocketService.getTemperatureData().observe(this, tempData -> {
                 if (tempData != null && !tempData.isEmpty()) {
                     Log.d(TAG, "Temperature data received: " + tempData.toString());
@@ -393,24 +458,6 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void saveDevicesToLocal(List<Device> devices) {
-        SharedPreferences prefs = getSharedPreferences("device_sync", MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
-        for (Device device : devices) {
-            Map<String, Object> deviceData = new HashMap<>();
-            deviceData.put("id", device.getId());
-            deviceData.put("name", device.getName());
-            deviceData.put("type", device.getType());
-            deviceData.put("room", device.getRoom());
-            deviceData.put("isActive", device.isActive());
-            deviceData.put("pin", device.getPin());
-            deviceData.put("timestamp", System.currentTimeMillis());
-            editor.putString("device_" + device.getId(), gson.toJson(deviceData));
-        }
-        editor.apply();
-        Log.d(TAG, "Saved " + devices.size() + " devices to local storage");
-    }
-
     private void logActivity(String action, String details) {
         Log.d(TAG, "Activity logged: " + action + " - " + details);
     }
@@ -515,6 +562,9 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (voiceCommandManager != null) {
+            voiceCommandManager.destroy();
+        }
         if (connectivityManager != null) {
             try {
                 connectivityManager.unregisterNetworkCallback(esp32NetworkCallback);
@@ -530,17 +580,28 @@ public class MainActivity extends AppCompatActivity {
         logActivity("App closed", "User closed the application");
     }
 
-    // Additional methods preserved from original
+    // Device commands go through the store like every other command: shown
+    // right away, queued while the hub is unreachable, and reverted if the
+    // hub doesn't apply them
     public void toggleDevice(String deviceId, boolean state) {
-        if (webSocketService != null && isWebSocketServiceConnected()) {
-            webSocketService.toggleDevice(deviceId, state);
+        HomeStateStore.getInstance().requestDeviceState(deviceId, state);
+    }
+
+    // Sent in one batch frame; only the devices that didn't switch revert
+    public void setDevicesState(List<String> deviceIds, boolean state) {
+        if (deviceIds.isEmpty()) {
+            return;
         }
+        HomeStateStore.getInstance().requestDevicesState(deviceIds, state).whenCompleteAsync((failed, error) -> {
+            if (failed != null && !failed.isEmpty()) {
+                Log.w(TAG, failed.size() + " of " + deviceIds.size() + " devices did not switch");
+                Toast.makeText(this, failed.size() + " devices did not respond", Toast.LENGTH_SHORT).show();
+            }
+        }, ContextCompat.getMainExecutor(this));
     }
 
     public void updateDevice(Device device) {
-        if (webSocketService != null && isWebSocketServiceConnected()) {
-            webSocketService.updateDevice(device);
-        }
+        HomeStateStore.getInstance().requestDeviceUpdate(device);
     }
 
     public Map<String, Object> getStoredSettings() {
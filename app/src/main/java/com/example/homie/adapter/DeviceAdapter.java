@@ -1,5 +1,6 @@
 package com.example.homie.adapter;
 
+import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -8,14 +9,46 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.cardview.widget.CardView;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 import com.example.homie.R;
 import com.example.homie.model.Device;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class DeviceAdapter extends ListAdapter<Device, DeviceAdapter.DeviceViewHolder> {
+    // Change payloads, OR-ed together when several fields change at once
+    private static final int PAYLOAD_TEMPERATURE = 1;
+    private static final int PAYLOAD_ACTIVE = 1 << 1;
+    private static final int PAYLOAD_TEXT = 1 << 2;
+
+    private static final DiffUtil.ItemCallback<Device> DIFF_CALLBACK = new DiffUtil.ItemCallback<Device>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Device oldItem, @NonNull Device newItem) {
+            return Objects.equals(oldItem.getId(), newItem.getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Device oldItem, @NonNull Device newItem) {
+            return changedFields(oldItem, newItem) == 0;
+        }
+
+        @Override
+        public Object getChangePayload(@NonNull Device oldItem, @NonNull Device newItem) {
+            return changedFields(oldItem, newItem);
+        }
+    };
 
-public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceViewHolder> {
-    private List<Device> devices;
     private OnDeviceClickListener listener;
+    private final Map<String, Long> stableIds = new HashMap<>();
+    private int activeIndicatorColor;
+    private int inactiveIndicatorColor;
+    private int activeCardColor;
+    private int inactiveCardColor;
+    private boolean colorsResolved = false;
 
     public interface OnDeviceClickListener {
         void onDeviceClick(Device device);
@@ -24,31 +57,97 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
     }
 
     public DeviceAdapter(List<Device> devices, OnDeviceClickListener listener) {
-        this.devices = devices;
+        super(DIFF_CALLBACK);
         this.listener = listener;
+        setHasStableIds(true);
+        updateDevices(devices);
     }
 
     @NonNull
     @Override
     public DeviceViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        resolveColors(parent.getContext());
         View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_device_card, parent, false);
         return new DeviceViewHolder(view);
     }
 
     @Override
     public void onBindViewHolder(@NonNull DeviceViewHolder holder, int position) {
-        Device device = devices.get(position);
-        holder.bind(device);
+        holder.bind(getItem(position));
     }
 
     @Override
-    public int getItemCount() {
-        return devices.size();
+    public void onBindViewHolder(@NonNull DeviceViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        int changed = 0;
+        for (Object payload : payloads) {
+            changed |= (Integer) payload;
+        }
+        Device device = getItem(position);
+        if ((changed & PAYLOAD_TEXT) != 0) {
+            holder.bindText(device);
+        }
+        if ((changed & PAYLOAD_TEMPERATURE) != 0) {
+            holder.bindTemperature(device);
+        }
+        if ((changed & PAYLOAD_ACTIVE) != 0) {
+            holder.bindActive(device);
+        }
     }
 
+    @Override
+    public long getItemId(int position) {
+        String id = getItem(position).getId();
+        Long stableId = stableIds.get(id);
+        if (stableId == null) {
+            stableId = (long) stableIds.size();
+            stableIds.put(id, stableId);
+        }
+        return stableId;
+    }
+
+    // Store devices are immutable snapshots, replaced on every change, so
+    // they can be submitted as they are
     public void updateDevices(List<Device> newDevices) {
-        this.devices = newDevices;
-        notifyDataSetChanged();
+        submitList(newDevices);
+    }
+
+    // Only fields the card shows count. The card rounds the temperature to
+    // whole degrees, so sub-degree telemetry doesn't rebind anything.
+    private static int changedFields(Device oldItem, Device newItem) {
+        int changed = 0;
+        if (!Objects.equals(displayedTemperature(oldItem), displayedTemperature(newItem))) {
+            changed |= PAYLOAD_TEMPERATURE;
+        }
+        if (oldItem.isActive() != newItem.isActive()
+                || !Objects.equals(oldItem.getStatus(), newItem.getStatus())) {
+            changed |= PAYLOAD_ACTIVE;
+        }
+        if (!Objects.equals(oldItem.getName(), newItem.getName())
+                || !Objects.equals(oldItem.getRoom(), newItem.getRoom())
+                || oldItem.getIconResource() != newItem.getIconResource()) {
+            changed |= PAYLOAD_TEXT;
+        }
+        return changed;
+    }
+
+    private static Integer displayedTemperature(Device device) {
+        Double temperature = device.getTemperature();
+        return temperature != null ? temperature.intValue() : null;
+    }
+
+    private void resolveColors(Context context) {
+        if (colorsResolved) {
+            return;
+        }
+        activeIndicatorColor = ContextCompat.getColor(context, R.color.primary);
+        inactiveIndicatorColor = ContextCompat.getColor(context, R.color.secondary);
+        activeCardColor = ContextCompat.getColor(context, R.color.device_active_background);
+        inactiveCardColor = ContextCompat.getColor(context, R.color.surface);
+        colorsResolved = true;
     }
 
     class DeviceViewHolder extends RecyclerView.ViewHolder {
@@ -69,47 +168,49 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
             deviceTemperature = itemView.findViewById(R.id.device_temperature);
             deviceIcon = itemView.findViewById(R.id.device_icon);
             statusIndicator = itemView.findViewById(R.id.status_indicator);
+
+            // Set once per holder; the device is looked up at click time
+            cardView.setOnClickListener(v -> {
+                int position = getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && listener != null) {
+                    listener.onDeviceClick(getItem(position));
+                }
+            });
+
+            statusIndicator.setOnClickListener(v -> {
+                int position = getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && listener != null) {
+                    listener.onDeviceToggle(getItem(position));
+                }
+            });
         }
 
         public void bind(Device device) {
+            bindText(device);
+            bindTemperature(device);
+            bindActive(device);
+        }
+
+        void bindText(Device device) {
             deviceName.setText(device.getName());
             deviceRoom.setText(device.getRoom());
-            deviceStatus.setText(device.getStatus());
             deviceIcon.setImageResource(device.getIconResource());
+        }
 
-            // Handle temperature display
+        void bindTemperature(Device device) {
             if (device.getTemperature() != null) {
                 deviceTemperature.setVisibility(View.VISIBLE);
                 deviceTemperature.setText(device.getTemperature().intValue() + "°");
             } else {
                 deviceTemperature.setVisibility(View.GONE);
             }
+        }
 
-            // Set status indicator color
-            int statusColor = device.isActive() ? ContextCompat.getColor(itemView.getContext(), R.color.primary)
-                    : ContextCompat.getColor(itemView.getContext(), R.color.secondary);
-            statusIndicator.setColorFilter(statusColor);
-
-            // Set card background based on status
-            if (device.isActive()) {
-                cardView.setCardBackgroundColor(
-                        ContextCompat.getColor(itemView.getContext(), R.color.device_active_background));
-            } else {
-                cardView.setCardBackgroundColor(ContextCompat.getColor(itemView.getContext(), R.color.surface));
-            }
-
-            // Click listeners
-            cardView.setOnClickListener(v -> {
-                if (listener != null) {
-                    listener.onDeviceClick(device);
-                }
-            });
-
-            statusIndicator.setOnClickListener(v -> {
-                if (listener != null) {
-                    listener.onDeviceToggle(device);
-                }
-            });
+        // Status text, indicator color and card background
+        void bindActive(Device device) {
+            deviceStatus.setText(device.getStatus());
+            statusIndicator.setColorFilter(device.isActive() ? activeIndicatorColor : inactiveIndicatorColor);
+            cardView.setCardBackgroundColor(device.isActive() ? activeCardColor : inactiveCardColor);
         }
     }
 }
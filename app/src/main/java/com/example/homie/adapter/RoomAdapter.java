@@ -7,22 +7,50 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.cardview.widget.CardView;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 import com.example.homie.R;
 import com.example.homie.model.Room;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class RoomAdapter extends ListAdapter<Room, RoomAdapter.RoomViewHolder> {
+    // Change payloads, OR-ed together when several fields change at once
+    private static final int PAYLOAD_STATUS = 1;
+    private static final int PAYLOAD_HEADER = 1 << 1;
+
+    private static final DiffUtil.ItemCallback<Room> DIFF_CALLBACK = new DiffUtil.ItemCallback<Room>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Room oldItem, @NonNull Room newItem) {
+            return Objects.equals(oldItem.getId(), newItem.getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Room oldItem, @NonNull Room newItem) {
+            return changedFields(oldItem, newItem) == 0;
+        }
+
+        @Override
+        public Object getChangePayload(@NonNull Room oldItem, @NonNull Room newItem) {
+            return changedFields(oldItem, newItem);
+        }
+    };
 
-public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.RoomViewHolder> {
-    private List<Room> rooms;
     private OnRoomClickListener listener;
+    private final Map<String, Long> stableIds = new HashMap<>();
 
     public interface OnRoomClickListener {
         void onRoomClick(Room room);
     }
 
     public RoomAdapter(List<Room> rooms, OnRoomClickListener listener) {
-        this.rooms = rooms;
+        super(DIFF_CALLBACK);
         this.listener = listener;
+        setHasStableIds(true);
+        updateRooms(rooms);
     }
 
     @NonNull
@@ -34,18 +62,62 @@ public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.RoomViewHolder
 
     @Override
     public void onBindViewHolder(@NonNull RoomViewHolder holder, int position) {
-        Room room = rooms.get(position);
-        holder.bind(room);
+        holder.bind(getItem(position));
     }
 
     @Override
-    public int getItemCount() {
-        return rooms.size();
+    public void onBindViewHolder(@NonNull RoomViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        int changed = 0;
+        for (Object payload : payloads) {
+            changed |= (Integer) payload;
+        }
+        Room room = getItem(position);
+        if ((changed & PAYLOAD_HEADER) != 0) {
+            holder.bindHeader(room);
+        }
+        if ((changed & PAYLOAD_STATUS) != 0) {
+            holder.bindStatus(room);
+        }
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String id = getItem(position).getId();
+        Long stableId = stableIds.get(id);
+        if (stableId == null) {
+            stableId = (long) stableIds.size();
+            stableIds.put(id, stableId);
+        }
+        return stableId;
     }
 
+    // The store builds fresh Room summaries for every publish
     public void updateRooms(List<Room> newRooms) {
-        this.rooms = newRooms;
-        notifyDataSetChanged();
+        submitList(newRooms);
+    }
+
+    private static int changedFields(Room oldItem, Room newItem) {
+        int changed = 0;
+        if (oldItem.getDeviceCount() != newItem.getDeviceCount()
+                || oldItem.getActiveDeviceCount() != newItem.getActiveDeviceCount()
+                || !Objects.equals(displayedTemperature(oldItem), displayedTemperature(newItem))) {
+            changed |= PAYLOAD_STATUS;
+        }
+        if (!Objects.equals(oldItem.getName(), newItem.getName())
+                || oldItem.getIconResource() != newItem.getIconResource()) {
+            changed |= PAYLOAD_HEADER;
+        }
+        return changed;
+    }
+
+    // The status text shows whole degrees only
+    private static Integer displayedTemperature(Room room) {
+        Double temperature = room.getAverageTemperature();
+        return temperature != null ? temperature.intValue() : null;
     }
 
     class RoomViewHolder extends RecyclerView.ViewHolder {
@@ -60,18 +132,27 @@ public class RoomAdapter extends RecyclerView.Adapter<RoomAdapter.RoomViewHolder
             roomName = itemView.findViewById(R.id.room_name);
             roomStatus = itemView.findViewById(R.id.room_status);
             roomIcon = itemView.findViewById(R.id.room_icon);
+
+            cardView.setOnClickListener(v -> {
+                int position = getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && listener != null) {
+                    listener.onRoomClick(getItem(position));
+                }
+            });
         }
 
         public void bind(Room room) {
+            bindHeader(room);
+            bindStatus(room);
+        }
+
+        void bindHeader(Room room) {
             roomName.setText(room.getName());
-            roomStatus.setText(room.getStatusText());
             roomIcon.setImageResource(room.getIconResource());
+        }
 
-            cardView.setOnClickListener(v -> {
-                if (listener != null) {
-                    listener.onRoomClick(room);
-                }
-            });
+        void bindStatus(Room room) {
+            roomStatus.setText(room.getStatusText());
         }
     }
 }
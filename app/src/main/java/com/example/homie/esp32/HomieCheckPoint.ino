@@ -56,6 +56,10 @@ const int NUM_DEVICES               = 8;
 // WiFi Configuration
 const char* AP_SSID = "SmartHome_ESP32";
 const char* AP_PASSWORD = "smarthome123";
+// Home network to join as well, leave empty for access point only. The app
+// learns the address from hello_ack and races it against the access point.
+const char* STA_SSID = "";
+const char* STA_PASSWORD = "";
 
 // Pin Arrays
 const int RELAY_PINS[NUM_DEVICES] = {
@@ -97,10 +101,38 @@ struct Device {
   float temperature;
   float humidity;
   unsigned long lastUpdate;
+  uint8_t levels[3];  // brightness, speed, volume; by control code
+  uint32_t version;   // stateVersion when this device last changed
 };
 
 Device devices[NUM_DEVICES];
 
+// Versioned sync. Every change to anything initial_devices reports stamps
+// the device with the next stateVersion, so a client that has seen version
+// V only needs the devices stamped after V. Versions live in RAM and
+// restart on boot; bootEpoch tells clients apart from a previous boot's
+// versions, which get a full dump instead.
+uint32_t stateVersion = 1;
+uint32_t bootEpoch = 0;
+const size_t DEVICE_DUMP_CAPACITY = 3584;
+
+// Binary framing ("bin1"), enabled per client after a hello handshake.
+// Frames are [tag][varint device index][payload], floats little-endian.
+const uint8_t TAG_DEVICE_STATE  = 0x01;
+const uint8_t TAG_TEMPERATURE   = 0x02;
+const uint8_t TAG_DEVICE_LEVEL  = 0x03;
+const uint8_t TAG_SET_LEVEL     = 0x12;
+const uint8_t FLAG_ACTIVE       = 0x01;
+
+// Slider settings, indexed by the app's DeviceControl code. The relays can
+// only switch, so levels are stored and reported back but don't drive the
+// outputs yet.
+const int NUM_CONTROLS = 3;
+const char* CONTROL_NAMES[NUM_CONTROLS] = {"brightness", "speed", "volume"};
+const uint8_t CONTROL_MAX[NUM_CONTROLS] = {100, 5, 100};
+const uint8_t CONTROL_DEFAULT[NUM_CONTROLS] = {100, 3, 50};
+bool binaryClients[WEBSOCKETS_SERVER_CLIENT_MAX] = {false};
+
 // Button Debounce
 bool buttonStates[NUM_DEVICES] = {true};
 bool lastButtonStates[NUM_DEVICES] = {true};
@@ -132,6 +164,7 @@ void setup() {
     Serial.println("SPIFFS mounted successfully");
   }
 
+  bootEpoch = esp_random() | 1;
   preferences.begin("homie", false);
   Serial.println("Preferences storage ready");
 
@@ -171,7 +204,8 @@ void loop() {
       devices[0].temperature = temp;
       devices[0].humidity = hum;
       devices[0].lastUpdate = currentMillis;
-      sendSensorUpdate("dht11_sensor", temp, hum);
+      touchDevice(0);
+      sendSensorUpdate(0, temp, hum);
       Serial.printf("[SENSOR] DHT11 T=%.1f°C H=%.1f%%\n", temp, hum);
     } else {
       Serial.println("[SENSOR] Failed to read from DHT11");
@@ -219,6 +253,15 @@ void setupHardware() {
 
 
 void setupAccessPoint() {
+  if (strlen(STA_SSID) > 0) {
+    // Joins in the background; the access point is up meanwhile
+    WiFi.mode(WIFI_AP_STA);
+    WiFi.setAutoReconnect(true);
+    WiFi.begin(STA_SSID, STA_PASSWORD);
+    Serial.printf("Joining home network %s\n", STA_SSID);
+  } else {
+    WiFi.mode(WIFI_AP);
+  }
   WiFi.softAP(AP_SSID, AP_PASSWORD);
   IPAddress apIP(192, 168, 4, 1);
   WiFi.softAPConfig(apIP, apIP, IPAddress(255, 255, 255, 0));
@@ -232,12 +275,16 @@ void setupWebSocket() {
   webSocket.onEvent([](uint8_t clientNum, WStype_t type, uint8_t* payload, size_t length) {
     if (type == WStype_CONNECTED) {
       Serial.printf("[WS] Client %u connected\n", clientNum);
+      binaryClients[clientNum] = false;
       sendInitialData(clientNum);
     } else if (type == WStype_TEXT) {
       Serial.printf("[WS] Message from client %u: %s\n", clientNum, payload);
       handleWebSocketMessage(clientNum, (char*)payload, length);
+    } else if (type == WStype_BIN) {
+      handleBinaryMessage(clientNum, payload, length);
     } else if (type == WStype_DISCONNECTED) {
       Serial.printf("[WS] Client %u disconnected\n", clientNum);
+      binaryClients[clientNum] = false;
     }
   });
   Serial.println("WebSocket server running on port 81");
@@ -274,7 +321,8 @@ void setupHTTPServer() {
 
 
 void handleWebSocketMessage(uint8_t clientNum, char* payload, size_t length) {
-  StaticJsonDocument<512> doc;
+  // Sized from the frame so batches with many operations still fit
+  DynamicJsonDocument doc(length * 2 + 256);
   DeserializationError error = deserializeJson(doc, payload, length);
   if (error) {
     Serial.printf("[WS] JSON parse error: %s\n", error.c_str());
@@ -284,45 +332,245 @@ void handleWebSocketMessage(uint8_t clientNum, char* payload, size_t length) {
   const char* type = doc["type"];
   Serial.printf("[WS] Handling type: %s\n", type);
 
+  // The app nests command arguments under "data" and tags commands with a
+  // "seq" that is echoed back in the ack
+  uint32_t seq = doc["seq"] | 0;
+  JsonObject args = doc.containsKey("data") ? doc["data"].as<JsonObject>() : doc.as<JsonObject>();
+
   if (strcmp(type, "toggle_device") == 0) {
-    String deviceId = doc["device_id"];
-    bool state = doc["state"];
+    String deviceId = args["device_id"];
+    bool state = args["state"];
     Serial.printf("[WS] Toggle request for %s -> %s\n", deviceId.c_str(), state ? "ON" : "OFF");
-    toggleDeviceById(deviceId, state);
+    bool found = toggleDeviceById(deviceId, state);
+    sendAck(clientNum, seq, found, "unknown_device");
   } 
   else if (strcmp(type, "update_device") == 0) {
     Serial.println("[WS] Device update request");
-    JsonObject obj = doc.as<JsonObject>();
-    handleDeviceUpdate(obj);
+    bool found = handleDeviceUpdate(args);
+    sendAck(clientNum, seq, found, "unknown_device");
   } 
   else if (strcmp(type, "get_initial_data") == 0) {
-    Serial.printf("[WS] Initial data request from client %u\n", clientNum);
-    sendInitialData(clientNum);
+    uint32_t epoch = args["epoch"] | (uint32_t)0;
+    uint32_t since = args["since"] | (uint32_t)0;
+    if (since > 0 && epoch == bootEpoch && since <= stateVersion) {
+      Serial.printf("[WS] Delta request from client %u since %u\n", clientNum, since);
+      sendDelta(clientNum, since);
+    } else {
+      Serial.printf("[WS] Initial data request from client %u\n", clientNum);
+      sendInitialData(clientNum);
+    }
   } 
   else if (strcmp(type, "sync_request") == 0) {
     Serial.printf("[WS] Sync request from client %u\n", clientNum);
     sendAllDeviceStates();
   }
+  else if (strcmp(type, "batch") == 0) {
+    handleBatch(clientNum, seq, args);
+  }
+  else if (strcmp(type, "hello") == 0) {
+    handleHello(clientNum, args["protocols"].as<JsonArray>());
+  }
+  else if (strcmp(type, "ping") == 0) {
+    sendPong(clientNum, args["t"]);
+  }
+  else if (strncmp(type, "set_", 4) == 0) {
+    int control = findControl(type + 4);
+    int index = findDeviceIndex(args["device_id"]);
+    if (control < 0 || index < 0) {
+      sendAck(clientNum, seq, false, control < 0 ? "unsupported_op" : "unknown_device");
+      return;
+    }
+    setDeviceLevel(index, control, args["value"] | 0, args["final"] | false);
+    sendAck(clientNum, seq, true, "");
+  }
+}
+
+
+int findControl(const char* name) {
+  for (int c = 0; c < NUM_CONTROLS; c++) {
+    if (strcmp(name, CONTROL_NAMES[c]) == 0) return c;
+  }
+  return -1;
+}
+
+
+int findDeviceIndex(const char* deviceId) {
+  if (deviceId == nullptr) return -1;
+  for (int i = 0; i < NUM_DEVICES; i++) {
+    if (devices[i].id == deviceId) return i;
+  }
+  return -1;
+}
+
+
+// Applies every operation, persists once, broadcasts each changed device once
+// and answers with one result per operation in the order received
+void handleBatch(uint8_t clientNum, uint32_t seq, JsonObject data) {
+  JsonArray ops = data["ops"].as<JsonArray>();
+  DynamicJsonDocument result(256 + ops.size() * JSON_OBJECT_SIZE(2) + ops.size() * 16);
+  result["type"] = "batch_result";
+  result["seq"] = seq;
+  JsonArray results = result.createNestedArray("results");
+
+  bool changed[NUM_DEVICES] = {false};
+  for (JsonObject op : ops) {
+    JsonObject opResult = results.createNestedObject();
+    const char* name = op["op"] | "";
+    int index = findDeviceIndex(op["device_id"]);
+    if (index < 0) {
+      opResult["ok"] = false;
+      opResult["error"] = "unknown_device";
+    } else if (strcmp(name, "toggle_device") == 0) {
+      // A missing or non-bool state would read as false and switch the
+      // device off
+      if (!op["state"].is<bool>()) {
+        opResult["ok"] = false;
+        opResult["error"] = "bad_op";
+        continue;
+      }
+      applyDeviceState(index, op["state"].as<bool>());
+      changed[index] = true;
+      opResult["ok"] = true;
+    } else {
+      opResult["ok"] = false;
+      opResult["error"] = "unsupported_op";
+    }
+  }
+
+  bool anyChanged = false;
+  for (int i = 0; i < NUM_DEVICES; i++) {
+    if (changed[i]) anyChanged = true;
+  }
+  if (anyChanged) {
+    saveDeviceConfiguration();
+    for (int i = 0; i < NUM_DEVICES; i++) {
+      if (changed[i]) sendDeviceStateUpdate(i);
+    }
+  }
+
+  String payload;
+  serializeJson(result, payload);
+  webSocket.sendTXT(clientNum, payload);
+  Serial.printf("[WS] Batch of %u ops from client %u done\n", ops.size(), clientNum);
+}
+
+
+void handleHello(uint8_t clientNum, JsonArray protocols) {
+  bool binary = false;
+  for (JsonVariant protocol : protocols) {
+    if (strcmp(protocol.as<const char*>(), "bin1") == 0) {
+      binary = true;
+      break;
+    }
+  }
+  binaryClients[clientNum] = binary;
+
+  StaticJsonDocument<160> ack;
+  ack["type"] = "hello_ack";
+  ack["protocol"] = binary ? "bin1" : "json";
+  if (WiFi.status() == WL_CONNECTED) {
+    ack["lan"] = "ws://" + WiFi.localIP().toString() + ":81";
+  }
+  String payload;
+  serializeJson(ack, payload);
+  webSocket.sendTXT(clientNum, payload);
+  Serial.printf("[WS] Client %u uses %s framing\n", clientNum, binary ? "binary" : "JSON");
+}
+
+
+size_t writeVarint(uint8_t* out, uint32_t value) {
+  size_t n = 0;
+  while (value >= 0x80) {
+    out[n++] = (value & 0x7F) | 0x80;
+    value >>= 7;
+  }
+  out[n++] = value;
+  return n;
+}
+
+
+bool readVarint(const uint8_t* in, size_t length, size_t* pos, uint32_t* value) {
+  *value = 0;
+  for (int shift = 0; shift < 35 && *pos < length; shift += 7) {
+    uint8_t b = in[(*pos)++];
+    *value |= (uint32_t)(b & 0x7F) << shift;
+    if ((b & 0x80) == 0) return true;
+  }
+  return false;
+}
+
+
+void handleBinaryMessage(uint8_t clientNum, uint8_t* payload, size_t length) {
+  if (length < 1) return;
+  size_t pos = 1;
+  uint32_t index;
+
+  if (payload[0] == TAG_SET_LEVEL) {
+    if (!readVarint(payload, length, &pos, &index) || pos + 1 >= length || index >= NUM_DEVICES
+        || payload[pos] >= NUM_CONTROLS) {
+      Serial.printf("[WS] Malformed binary level from client %u\n", clientNum);
+      return;
+    }
+    // Binary levels are only ever streamed values; the final one comes as JSON
+    setDeviceLevel(index, payload[pos], payload[pos + 1], false);
+  } else {
+    Serial.printf("[WS] Unknown binary tag 0x%02x from client %u\n", payload[0], clientNum);
+  }
+}
+
+
+// Sends the binary frame to bin1 clients and the JSON text to everyone else
+void broadcastFramed(uint8_t* frame, size_t frameLength, String& json) {
+  for (uint8_t num = 0; num < WEBSOCKETS_SERVER_CLIENT_MAX; num++) {
+    if (!webSocket.clientIsConnected(num)) continue;
+    if (binaryClients[num]) {
+      webSocket.sendBIN(num, frame, frameLength);
+    } else {
+      webSocket.sendTXT(num, json);
+    }
+  }
 }
 
 
-void toggleDeviceById(String deviceId, bool state) {
+// Replies to a command tagged with seq; untagged commands get no ack
+void sendAck(uint8_t clientNum, uint32_t seq, bool ok, const char* error) {
+  if (seq == 0) return;
+  StaticJsonDocument<96> ack;
+  ack["type"] = "ack";
+  ack["seq"] = seq;
+  ack["ok"] = ok;
+  if (!ok) ack["error"] = error;
+
+  String payload;
+  serializeJson(ack, payload);
+  webSocket.sendTXT(clientNum, payload);
+}
+
+
+bool toggleDeviceById(String deviceId, bool state) {
   for (int i = 0; i < NUM_DEVICES; i++) {
     if (devices[i].id == deviceId) {
       setDeviceState(i, state);
       sendDeviceStateUpdate(i);
       Serial.printf("[DEVICE] %s toggled -> %s\n", devices[i].name.c_str(), state ? "ON" : "OFF");
-      return;
+      return true;
     }
   }
   Serial.printf("[DEVICE] Unknown device ID: %s\n", deviceId.c_str());
+  return false;
 }
 
 
-void setDeviceState(int i, bool state) {
+void applyDeviceState(int i, bool state) {
   devices[i].isActive = state;
   devices[i].lastUpdate = millis();
+  touchDevice(i);
   digitalWrite(RELAY_PINS[i], state ? HIGH : LOW);
+}
+
+
+void setDeviceState(int i, bool state) {
+  applyDeviceState(i, state);
   saveDeviceConfiguration();
   Serial.printf("[DEVICE] State updated: %s (%s) -> %s\n", devices[i].name.c_str(), devices[i].id.c_str(), state ? "ON" : "OFF");
 }
@@ -337,41 +585,110 @@ void sendDeviceStateUpdate(int i) {
 
   String payload;
   serializeJson(doc, payload);
-  webSocket.broadcastTXT(payload);
+
+  uint8_t frame[8];
+  size_t n = 0;
+  frame[n++] = TAG_DEVICE_STATE;
+  n += writeVarint(&frame[n], i);
+  frame[n++] = devices[i].isActive ? FLAG_ACTIVE : 0;
+
+  broadcastFramed(frame, n, payload);
   Serial.printf("[WS] Broadcast device state for %s\n", devices[i].id.c_str());
 }
 
 
-void sendSensorUpdate(String sensorId, float temp, float hum) {
+// Streamed values only update the live level. The final value of a drag is
+// also persisted and broadcast, so flash isn't written and other clients
+// aren't flooded at the slider's rate.
+void setDeviceLevel(int i, int control, int value, bool isFinal) {
+  if (value < 0) value = 0;
+  if (value > CONTROL_MAX[control]) value = CONTROL_MAX[control];
+  devices[i].levels[control] = value;
+  devices[i].lastUpdate = millis();
+  touchDevice(i);
+  if (isFinal) {
+    preferences.putUChar(("lvl" + String(control) + "_" + String(i)).c_str(), value);
+    sendDeviceLevelUpdate(i, control);
+    Serial.printf("[DEVICE] %s %s -> %d\n", devices[i].name.c_str(), CONTROL_NAMES[control], value);
+  }
+}
+
+
+void sendDeviceLevelUpdate(int i, int control) {
+  StaticJsonDocument<128> doc;
+  doc["type"] = "device_level";
+  doc["id"] = devices[i].id;
+  doc["control"] = CONTROL_NAMES[control];
+  doc["value"] = devices[i].levels[control];
+
+  String payload;
+  serializeJson(doc, payload);
+
+  uint8_t frame[9];
+  size_t n = 0;
+  frame[n++] = TAG_DEVICE_LEVEL;
+  n += writeVarint(&frame[n], i);
+  frame[n++] = control;
+  frame[n++] = devices[i].levels[control];
+
+  broadcastFramed(frame, n, payload);
+}
+
+
+// Both framings carry the same event: a "temperature" for the device that
+// owns the sensor, which is what the binary frame's index refers to
+void sendSensorUpdate(int deviceIndex, float temp, float hum) {
   StaticJsonDocument<192> doc;
-  doc["type"] = "sensor_update";
-  doc["id"] = sensorId;
+  doc["type"] = "temperature";
+  doc["id"] = devices[deviceIndex].id;
   doc["temperature"] = temp;
   doc["humidity"] = hum;
   doc["timestamp"] = millis();
 
   String payload;
   serializeJson(doc, payload);
-  webSocket.broadcastTXT(payload);
-  Serial.printf("[WS] Broadcast sensor update %s T=%.1f H=%.1f\n", sensorId.c_str(), temp, hum);
+
+  uint8_t frame[10];
+  size_t n = 0;
+  frame[n++] = TAG_TEMPERATURE;
+  n += writeVarint(&frame[n], deviceIndex);
+  memcpy(&frame[n], &temp, sizeof(float));
+  n += sizeof(float);
+
+  broadcastFramed(frame, n, payload);
+  Serial.printf("[WS] Broadcast sensor update %s T=%.1f H=%.1f\n", devices[deviceIndex].id.c_str(), temp, hum);
+}
+
+
+void touchDevice(int i) {
+  devices[i].version = ++stateVersion;
+}
+
+
+void writeDevice(JsonObject dev, int i) {
+  dev["id"] = devices[i].id;
+  dev["name"] = devices[i].name;
+  dev["type"] = devices[i].type;
+  dev["room"] = devices[i].room;
+  dev["isActive"] = devices[i].isActive;
+  dev["pin"] = devices[i].pin;
+  dev["temperature"] = devices[i].temperature;
+  dev["humidity"] = devices[i].humidity;
+  dev["lastUpdate"] = devices[i].lastUpdate;
+  for (int c = 0; c < NUM_CONTROLS; c++) {
+    dev[CONTROL_NAMES[c]] = devices[i].levels[c];
+  }
 }
 
 
 void sendInitialData(uint8_t clientNum) {
-  DynamicJsonDocument doc(2048);
+  DynamicJsonDocument doc(DEVICE_DUMP_CAPACITY);
   doc["type"] = "initial_devices";
+  doc["epoch"] = bootEpoch;
+  doc["version"] = stateVersion;
   JsonArray arr = doc.createNestedArray("devices");
   for (int i = 0; i < NUM_DEVICES; i++) {
-    JsonObject dev = arr.createNestedObject();
-    dev["id"] = devices[i].id;
-    dev["name"] = devices[i].name;
-    dev["type"] = devices[i].type;
-    dev["room"] = devices[i].room;
-    dev["isActive"] = devices[i].isActive;
-    dev["pin"] = devices[i].pin;
-    dev["temperature"] = devices[i].temperature;
-    dev["humidity"] = devices[i].humidity;
-    dev["lastUpdate"] = devices[i].lastUpdate;
+    writeDevice(arr.createNestedObject(), i);
   }
   doc["timestamp"] = millis();
 
@@ -382,6 +699,33 @@ void sendInitialData(uint8_t clientNum) {
 }
 
 
+// Only the devices changed after `since`, plus every id in order so the
+// client can drop devices that are gone and keep its binary indices
+void sendDelta(uint8_t clientNum, uint32_t since) {
+  DynamicJsonDocument doc(DEVICE_DUMP_CAPACITY);
+  doc["type"] = "device_delta";
+  doc["epoch"] = bootEpoch;
+  doc["version"] = stateVersion;
+  doc["since"] = since;
+  JsonArray ids = doc.createNestedArray("ids");
+  JsonArray arr = doc.createNestedArray("devices");
+  int changed = 0;
+  for (int i = 0; i < NUM_DEVICES; i++) {
+    ids.add(devices[i].id);
+    if (devices[i].version > since) {
+      writeDevice(arr.createNestedObject(), i);
+      changed++;
+    }
+  }
+  doc["timestamp"] = millis();
+
+  String payload;
+  serializeJson(doc, payload);
+  webSocket.sendTXT(clientNum, payload);
+  Serial.printf("[WS] Sent delta of %d devices to client %u\n", changed, clientNum);
+}
+
+
 void sendAllDeviceStates() {
   for (int i = 0; i < NUM_DEVICES; i++) {
     sendDeviceStateUpdate(i);
@@ -390,7 +734,7 @@ void sendAllDeviceStates() {
 }
 
 
-void handleDeviceUpdate(JsonObject doc) {
+bool handleDeviceUpdate(JsonObject doc) {
   String deviceId = doc["device_id"];
   const char* name = doc["name"];
   const char* type = doc["type"];
@@ -403,13 +747,15 @@ void handleDeviceUpdate(JsonObject doc) {
       devices[i].type = String(type);
       devices[i].room = String(room);
       devices[i].lastUpdate = millis();
+      touchDevice(i);
       saveDeviceConfiguration();
       sendDeviceStateUpdate(i);
       Serial.printf("[DEVICE] Updated metadata for %s\n", devices[i].id.c_str());
-      return;
+      return true;
     }
   }
   Serial.printf("[DEVICE] Unknown device ID in update: %s\n", deviceId.c_str());
+  return false;
 }
 
 
@@ -442,6 +788,10 @@ void loadDeviceConfiguration() {
     devices[i].temperature = -127.0;
     devices[i].humidity = -1.0;
     devices[i].lastUpdate = 0;
+    devices[i].version = stateVersion;
+    for (int c = 0; c < NUM_CONTROLS; c++) {
+      devices[i].levels[c] = preferences.getUChar(("lvl" + String(c) + "_" + String(i)).c_str(), CONTROL_DEFAULT[c]);
+    }
     Serial.printf("[PREF] Loaded device %d: %s (%s) in %s, active=%s\n", 
                   i, devices[i].name.c_str(), devices[i].type.c_str(), devices[i].room.c_str(),
                   devices[i].isActive ? "true" : "false");
@@ -462,6 +812,20 @@ void sendHeartbeat() {
 }
 
 
+// Echoes the app's send time untouched so it can measure the round trip
+// with its own clock
+void sendPong(uint8_t clientNum, JsonVariant sentAt) {
+  StaticJsonDocument<96> doc;
+  doc["type"] = "pong";
+  doc["t"] = sentAt;
+  doc["uptime"] = millis();
+
+  String payload;
+  serializeJson(doc, payload);
+  webSocket.sendTXT(clientNum, payload);
+}
+
+
 void sendPerformance() {
   StaticJsonDocument<256> doc;
   doc["type"] = "performance";
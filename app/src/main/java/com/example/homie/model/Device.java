@@ -5,43 +5,49 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class Device {
+    // Bits of flags
+    private static final int FLAG_ACTIVE = 1;
+    private static final int FLAG_ONLINE = 1 << 1; // ESP32 connection status
+    private static final int FLAG_ESP32_CONTROLLED = 1 << 2; // Whether device is controlled by ESP32
+    private static final int FLAG_NEEDS_SYNC = 1 << 3; // Local change not yet confirmed by the ESP32
+
+    private static final String PROPERTY_NEEDS_SYNC = "needsSync";
+    private static final String PROPERTY_LAST_SYNC_TIME = "lastSyncTime";
+
     private String id;
     private String name;
-    private String type;
+    private String type; // interned, as are room, roomId and status
+    private DeviceType deviceType; // resolved from type when it is set
     private String room;
-    private String roomId;
-    private boolean isActive;
+    private String roomId; // null means same as room
+    private int flags;
     private int iconResource;
     private String status;
     private Double temperature;
     private int pin; // GPIO pin number on ESP32
     private long lastUpdate; // Timestamp of last update
-    private boolean isOnline; // ESP32 connection status
+    private long lastSyncTime; // Last time the ESP32 confirmed this device
     private float brightness; // For lights (0-100)
     private int speed; // For fans (0-5)
     private int volume; // For speakers (0-100)
-    private String mqttTopic; // MQTT topic for this device
-    private boolean isESP32Controlled; // Whether device is controlled by ESP32
+    private String mqttTopic; // MQTT topic, null means derived from esp32DeviceId
     private String esp32DeviceId; // ID used by ESP32
-    private Map<String, Object> esp32Properties; // Additional ESP32 properties
+    private Map<String, Object> esp32Properties; // Additional ESP32 properties, created on first use
 
     // Constructor with basic parameters
     public Device(String id, String name, String type, String room, boolean isActive) {
         this.id = id;
         this.name = name;
-        this.type = type;
-        this.room = room;
-        this.roomId = room;
-        this.isActive = isActive;
+        setType(type);
+        this.room = intern(room);
+        this.flags = isActive ? FLAG_ACTIVE : 0;
         this.status = isActive ? "On" : "Off";
-        this.isOnline = false;
         this.lastUpdate = System.currentTimeMillis();
         this.brightness = 100.0f;
         this.speed = 1;
         this.volume = 50;
         this.temperature = null;
         this.pin = -1; // Invalid pin by default
-        this.esp32Properties = new HashMap<>();
     }
 
     // Constructor with icon resource
@@ -61,9 +67,30 @@ public class Device {
             String esp32DeviceId) {
         this(id, name, type, room, isActive, iconResource, pin);
         this.esp32DeviceId = esp32DeviceId;
-        this.isESP32Controlled = true;
-        this.mqttTopic = "homie/devices/" + esp32DeviceId + "/state";
-        this.esp32Properties = new HashMap<>();
+        this.flags |= FLAG_ESP32_CONTROLLED;
+    }
+
+    // Copy constructor; the ESP32 property map is copied rather than shared
+    public Device(Device other) {
+        this.id = other.id;
+        this.name = other.name;
+        this.type = other.type;
+        this.deviceType = other.deviceType;
+        this.room = other.room;
+        this.roomId = other.roomId;
+        this.flags = other.flags;
+        this.iconResource = other.iconResource;
+        this.status = other.status;
+        this.temperature = other.temperature;
+        this.pin = other.pin;
+        this.lastUpdate = other.lastUpdate;
+        this.lastSyncTime = other.lastSyncTime;
+        this.brightness = other.brightness;
+        this.speed = other.speed;
+        this.volume = other.volume;
+        this.mqttTopic = other.mqttTopic;
+        this.esp32DeviceId = other.esp32DeviceId;
+        this.esp32Properties = other.esp32Properties != null ? new HashMap<>(other.esp32Properties) : null;
     }
 
     // Getters and setters
@@ -88,7 +115,12 @@ public class Device {
     }
 
     public void setType(String type) {
-        this.type = type;
+        this.type = intern(type);
+        this.deviceType = DeviceType.fromString(type);
+    }
+
+    public DeviceType getDeviceType() {
+        return deviceType;
     }
 
     public String getRoom() {
@@ -96,29 +128,29 @@ public class Device {
     }
 
     public void setRoom(String room) {
-        this.room = room;
+        this.room = intern(room);
     }
 
     public String getRoomId() {
-        return roomId;
+        return roomId != null ? roomId : room;
     }
 
     public void setRoomId(String roomId) {
-        this.roomId = roomId;
+        this.roomId = roomId == null || roomId.equals(room) ? null : intern(roomId);
     }
 
     public boolean isActive() {
-        return isActive;
+        return hasFlag(FLAG_ACTIVE);
     }
 
     public void setActive(boolean active) {
-        isActive = active;
+        setFlag(FLAG_ACTIVE, active);
         this.status = active ? "On" : "Off";
         this.lastUpdate = System.currentTimeMillis();
 
         // Add ESP32 sync flag if this is an ESP32-controlled device
-        if (isESP32Controlled) {
-            addEsp32Property("needsSync", true);
+        if (isESP32Controlled()) {
+            setNeedsESP32Sync(true);
         }
     }
 
@@ -135,7 +167,7 @@ public class Device {
     }
 
     public void setStatus(String status) {
-        this.status = status;
+        this.status = intern(status);
     }
 
     public Double getTemperature() {
@@ -163,11 +195,11 @@ public class Device {
     }
 
     public boolean isOnline() {
-        return isOnline;
+        return hasFlag(FLAG_ONLINE);
     }
 
     public void setOnline(boolean online) {
-        isOnline = online;
+        setFlag(FLAG_ONLINE, online);
     }
 
     public float getBrightness() {
@@ -198,26 +230,26 @@ public class Device {
     }
 
     public void toggle() {
-        this.isActive = !this.isActive;
-        this.status = this.isActive ? "On" : "Off";
+        flags ^= FLAG_ACTIVE;
+        this.status = isActive() ? "On" : "Off";
         this.lastUpdate = System.currentTimeMillis();
     }
 
     // Helper methods
     public boolean isLight() {
-        return type != null && type.toLowerCase().contains("light");
+        return deviceType == DeviceType.LIGHT;
     }
 
     public boolean isFan() {
-        return type != null && type.toLowerCase().contains("fan");
+        return deviceType == DeviceType.FAN;
     }
 
     public boolean isThermostat() {
-        return type != null && type.toLowerCase().contains("thermostat");
+        return deviceType == DeviceType.THERMOSTAT;
     }
 
     public boolean isSpeaker() {
-        return type != null && (type.toLowerCase().contains("speaker") || type.toLowerCase().contains("audio"));
+        return deviceType == DeviceType.SPEAKER;
     }
 
     public boolean hasTemperatureSensor() {
@@ -226,6 +258,9 @@ public class Device {
 
     // ESP32-specific getters and setters
     public String getMqttTopic() {
+        if (mqttTopic == null && esp32DeviceId != null) {
+            return "homie/devices/" + esp32DeviceId + "/state";
+        }
         return mqttTopic;
     }
 
@@ -234,11 +269,11 @@ public class Device {
     }
 
     public boolean isESP32Controlled() {
-        return isESP32Controlled;
+        return hasFlag(FLAG_ESP32_CONTROLLED);
     }
 
     public void setESP32Controlled(boolean esp32Controlled) {
-        isESP32Controlled = esp32Controlled;
+        setFlag(FLAG_ESP32_CONTROLLED, esp32Controlled);
     }
 
     public String getEsp32DeviceId() {
@@ -248,7 +283,7 @@ public class Device {
     public void setEsp32DeviceId(String esp32DeviceId) {
         this.esp32DeviceId = esp32DeviceId;
         if (esp32DeviceId != null) {
-            this.mqttTopic = "homie/devices/" + esp32DeviceId + "/state";
+            this.mqttTopic = null; // derived from the new id
         }
     }
 
@@ -257,10 +292,25 @@ public class Device {
     }
 
     public void setEsp32Properties(Map<String, Object> esp32Properties) {
-        this.esp32Properties = esp32Properties;
+        this.esp32Properties = null;
+        if (esp32Properties != null) {
+            for (Map.Entry<String, Object> entry : esp32Properties.entrySet()) {
+                addEsp32Property(entry.getKey(), entry.getValue());
+            }
+        }
     }
 
+    // Sync state has typed fields; the old property keys still map onto them
+    // so data stored with them keeps working
     public void addEsp32Property(String key, Object value) {
+        if (PROPERTY_NEEDS_SYNC.equals(key) && value instanceof Boolean) {
+            setNeedsESP32Sync((Boolean) value);
+            return;
+        }
+        if (PROPERTY_LAST_SYNC_TIME.equals(key) && value instanceof Number) {
+            lastSyncTime = ((Number) value).longValue();
+            return;
+        }
         if (esp32Properties == null) {
             esp32Properties = new HashMap<>();
         }
@@ -269,32 +319,34 @@ public class Device {
 
     // Method to check if device needs ESP32 sync
     public boolean needsESP32Sync() {
-        return isESP32Controlled && esp32Properties != null &&
-                Boolean.TRUE.equals(esp32Properties.get("needsSync"));
+        return isESP32Controlled() && hasFlag(FLAG_NEEDS_SYNC);
+    }
+
+    public void setNeedsESP32Sync(boolean needsSync) {
+        setFlag(FLAG_NEEDS_SYNC, needsSync);
     }
 
     // Method to mark device as synced with ESP32
     public void markESP32Synced() {
-        if (esp32Properties != null) {
-            esp32Properties.put("needsSync", false);
-            esp32Properties.put("lastSyncTime", System.currentTimeMillis());
-        }
+        setFlag(FLAG_NEEDS_SYNC, false);
+        lastSyncTime = System.currentTimeMillis();
     }
 
     // Method to get last ESP32 sync time
     public long getLastESP32SyncTime() {
-        if (esp32Properties != null && esp32Properties.containsKey("lastSyncTime")) {
-            return (Long) esp32Properties.get("lastSyncTime");
-        }
-        return 0;
+        return lastSyncTime;
+    }
+
+    public void setLastESP32SyncTime(long lastSyncTime) {
+        this.lastSyncTime = lastSyncTime;
     }
 
     // Enhanced status method for ESP32 devices
     public String getDetailedStatus() {
         StringBuilder statusBuilder = new StringBuilder();
-        statusBuilder.append(isActive ? "On" : "Off");
+        statusBuilder.append(isActive() ? "On" : "Off");
 
-        if (isActive) {
+        if (isActive()) {
             if (isLight() && brightness < 100) {
                 statusBuilder.append(" (").append((int) brightness).append("%)");
             } else if (isFan() && speed > 0) {
@@ -308,13 +360,13 @@ public class Device {
             statusBuilder.append(" • ").append(String.format("%.1f°C", temperature));
         }
 
-        if (isESP32Controlled) {
-            if (!isOnline) {
+        if (isESP32Controlled()) {
+            if (!isOnline()) {
                 statusBuilder.append(" • ESP32 Offline");
             } else if (needsESP32Sync()) {
                 statusBuilder.append(" • Syncing...");
             }
-        } else if (!isOnline) {
+        } else if (!isOnline()) {
             statusBuilder.append(" • Offline");
         }
 
@@ -336,10 +388,10 @@ public class Device {
                 ", name='" + name + '\'' +
                 ", type='" + type + '\'' +
                 ", room='" + room + '\'' +
-                ", isActive=" + isActive +
+                ", isActive=" + isActive() +
                 ", pin=" + pin +
-                ", isOnline=" + isOnline +
-                ", isESP32Controlled=" + isESP32Controlled +
+                ", isOnline=" + isOnline() +
+                ", isESP32Controlled=" + isESP32Controlled() +
                 ", esp32DeviceId='" + esp32DeviceId + '\'' +
                 ", lastUpdate=" + lastUpdate +
                 '}';
@@ -359,4 +411,17 @@ public class Device {
     public int hashCode() {
         return id != null ? id.hashCode() : 0;
     }
+
+    private boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    private void setFlag(int flag, boolean value) {
+        flags = value ? flags | flag : flags & ~flag;
+    }
+
+    // Rooms, types and statuses repeat across devices; share one copy of each
+    private static String intern(String value) {
+        return value != null ? value.intern() : null;
+    }
 }
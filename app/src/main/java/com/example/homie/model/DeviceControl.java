@@ -0,0 +1,87 @@
+package com.example.homie.model;
+
+// Continuous device settings driven by sliders. Each has its own hub command
+// ("set_brightness" ...) and a one-byte code used by binary frames.
+public enum DeviceControl {
+    BRIGHTNESS("brightness", 100),
+    SPEED("speed", 5),
+    VOLUME("volume", 100);
+
+    private final String name;
+    private final int max;
+
+    DeviceControl(String name, int max) {
+        this.name = name;
+        this.max = max;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCommand() {
+        return "set_" + name;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public int getCode() {
+        return ordinal();
+    }
+
+    public int get(Device device) {
+        switch (this) {
+            case BRIGHTNESS:
+                return Math.round(device.getBrightness());
+            case SPEED:
+                return device.getSpeed();
+            default:
+                return device.getVolume();
+        }
+    }
+
+    public void set(Device device, int value) {
+        switch (this) {
+            case BRIGHTNESS:
+                device.setBrightness(value);
+                break;
+            case SPEED:
+                device.setSpeed(value);
+                break;
+            default:
+                device.setVolume(value);
+                break;
+        }
+    }
+
+    // Null for names and codes this version doesn't know
+    public static DeviceControl fromName(String name) {
+        for (DeviceControl control : values()) {
+            if (control.name.equals(name)) {
+                return control;
+            }
+        }
+        return null;
+    }
+
+    public static DeviceControl fromCode(int code) {
+        DeviceControl[] controls = values();
+        return code >= 0 && code < controls.length ? controls[code] : null;
+    }
+
+    // The slider a device's detail screen shows, or null for none
+    public static DeviceControl forType(DeviceType type) {
+        switch (type) {
+            case LIGHT:
+                return BRIGHTNESS;
+            case FAN:
+                return SPEED;
+            case SPEAKER:
+                return VOLUME;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.homie.model;
+
+import java.util.Locale;
+
+// Device category, resolved once from the free-form type string the hub or
+// user supplied so checks like isLight() don't re-scan the string each bind
+public enum DeviceType {
+    LIGHT,
+    FAN,
+    THERMOSTAT,
+    SPEAKER,
+    LOCK,
+    TEMPERATURE_SENSOR,
+    OTHER;
+
+    // Same substring rules the type checks used before, first match wins
+    public static DeviceType fromString(String type) {
+        if (type == null) {
+            return OTHER;
+        }
+        String lower = type.toLowerCase(Locale.ROOT);
+        if (lower.contains("light")) {
+            return LIGHT;
+        } else if (lower.contains("fan")) {
+            return FAN;
+        } else if (lower.contains("thermostat")) {
+            return THERMOSTAT;
+        } else if (lower.contains("speaker") || lower.contains("audio")) {
+            return SPEAKER;
+        } else if (lower.contains("lock")) {
+            return LOCK;
+        } else if (lower.contains("temperature")) {
+            return TEMPERATURE_SENSOR;
+        }
+        return OTHER;
+    }
+}
@@ -7,6 +7,8 @@ public class Room {
     private String name;
     private int deviceCount;
     private int activeDeviceCount;
+    private int onlineDeviceCount;
+    private Double averageTemperature;
     private int iconResource;
 
     public Room(String id, String name, int iconResource) {
@@ -17,6 +19,16 @@ public class Room {
         this.activeDeviceCount = 0;
     }
 
+    public Room(Room other) {
+        this.id = other.id;
+        this.name = other.name;
+        this.iconResource = other.iconResource;
+        this.deviceCount = other.deviceCount;
+        this.activeDeviceCount = other.activeDeviceCount;
+        this.onlineDeviceCount = other.onlineDeviceCount;
+        this.averageTemperature = other.averageTemperature;
+    }
+
     // Getters and setters
     public String getId() {
         return id;
@@ -50,6 +62,23 @@ public class Room {
         this.activeDeviceCount = activeDeviceCount;
     }
 
+    public int getOnlineDeviceCount() {
+        return onlineDeviceCount;
+    }
+
+    public void setOnlineDeviceCount(int onlineDeviceCount) {
+        this.onlineDeviceCount = onlineDeviceCount;
+    }
+
+    // Mean of the room's devices that report a temperature, or null if none do
+    public Double getAverageTemperature() {
+        return averageTemperature;
+    }
+
+    public void setAverageTemperature(Double averageTemperature) {
+        this.averageTemperature = averageTemperature;
+    }
+
     public int getIconResource() {
         return iconResource;
     }
@@ -59,7 +88,11 @@ public class Room {
     }
 
     public String getStatusText() {
-        return deviceCount + " devices • " + activeDeviceCount + " active";
+        String status = deviceCount + " devices • " + activeDeviceCount + " active";
+        if (averageTemperature != null) {
+            status += " • " + averageTemperature.intValue() + "°";
+        }
+        return status;
     }
 
     public String getRoomId() {
@@ -0,0 +1,99 @@
+package com.example.homie.repository;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+// One row per device so a single change rewrites one small record instead of
+// the whole house. Rows keep their rowid on update, which preserves order.
+class DeviceDatabase extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "homie_devices.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_DEVICES = "devices";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_DATA = "data";
+
+    DeviceDatabase(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_DEVICES + " ("
+                + COLUMN_ID + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_DATA + " TEXT NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DEVICES);
+        onCreate(db);
+    }
+
+    List<String> readAll() {
+        List<String> records = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_DEVICES, new String[] { COLUMN_DATA },
+                null, null, null, null, "rowid")) {
+            while (cursor.moveToNext()) {
+                records.add(cursor.getString(0));
+            }
+        }
+        return records;
+    }
+
+    long count() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_DEVICES);
+    }
+
+    // Applies a burst of changes in a single transaction. With replaceAll the
+    // table is emptied first, so the writes become the full device list.
+    void writeBatch(Map<String, String> writes, Collection<String> deletes, boolean replaceAll) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (replaceAll) {
+                db.delete(TABLE_DEVICES, null, null);
+            }
+
+            if (!writes.isEmpty()) {
+                SQLiteStatement update = db.compileStatement(
+                        "UPDATE " + TABLE_DEVICES + " SET " + COLUMN_DATA + " = ? WHERE " + COLUMN_ID + " = ?");
+                SQLiteStatement insert = db.compileStatement(
+                        "INSERT INTO " + TABLE_DEVICES + " (" + COLUMN_ID + ", " + COLUMN_DATA + ") VALUES (?, ?)");
+                for (Map.Entry<String, String> entry : writes.entrySet()) {
+                    update.bindString(1, entry.getValue());
+                    update.bindString(2, entry.getKey());
+                    if (update.executeUpdateDelete() == 0) {
+                        insert.bindString(1, entry.getKey());
+                        insert.bindString(2, entry.getValue());
+                        insert.executeInsert();
+                    }
+                }
+                update.close();
+                insert.close();
+            }
+
+            if (!deletes.isEmpty()) {
+                SQLiteStatement delete = db.compileStatement(
+                        "DELETE FROM " + TABLE_DEVICES + " WHERE " + COLUMN_ID + " = ?");
+                for (String id : deletes) {
+                    delete.bindString(1, id);
+                    delete.executeUpdateDelete();
+                }
+                delete.close();
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.homie.repository;
+
+import com.example.homie.model.Device;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// In-memory device table with secondary indexes by room, active and online
+// state. Not thread-safe; HomeStateStore guards access.
+class DeviceIndex {
+    private final Map<String, Device> byId = new LinkedHashMap<>();
+    private final Map<String, Set<String>> byRoom = new HashMap<>();
+    private final Set<String> activeIds = new LinkedHashSet<>();
+    private final Set<String> onlineIds = new LinkedHashSet<>();
+
+    // Room each device was last indexed under, so re-putting a device that
+    // moved to another room drops it from the old room's set
+    private final Map<String, String> indexedRoom = new HashMap<>();
+
+    void put(Device device) {
+        String id = device.getId();
+        unindex(id);
+
+        byId.put(id, device);
+        String room = device.getRoom();
+        addTo(byRoom, room, id);
+        indexedRoom.put(id, room);
+        if (device.isActive()) {
+            activeIds.add(id);
+        }
+        if (device.isOnline()) {
+            onlineIds.add(id);
+        }
+    }
+
+    Device remove(String id) {
+        unindex(id);
+        return byId.remove(id);
+    }
+
+    Device get(String id) {
+        return byId.get(id);
+    }
+
+    int size() {
+        return byId.size();
+    }
+
+    List<Device> all() {
+        return new ArrayList<>(byId.values());
+    }
+
+    List<Device> byRoom(String room) {
+        return resolve(byRoom.get(room));
+    }
+
+    List<Device> active() {
+        return resolve(activeIds);
+    }
+
+    List<Device> online() {
+        return resolve(onlineIds);
+    }
+
+    private void unindex(String id) {
+        if (!byId.containsKey(id)) {
+            return;
+        }
+        removeFrom(byRoom, indexedRoom.remove(id), id);
+        activeIds.remove(id);
+        onlineIds.remove(id);
+    }
+
+    private List<Device> resolve(Set<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Device> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            result.add(byId.get(id));
+        }
+        return result;
+    }
+
+    private static void addTo(Map<String, Set<String>> index, String key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids == null) {
+            ids = new LinkedHashSet<>();
+            index.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    private static void removeFrom(Map<String, Set<String>> index, String key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.homie.repository;
+
+import com.example.homie.model.Device;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+// Immutable view of the device list published once per UI frame, along with
+// the ids that changed since the previous snapshot.
+public final class DeviceSnapshot {
+    private final List<Device> devices;
+    private final Set<String> changedIds;
+
+    public DeviceSnapshot(List<Device> devices, Set<String> changedIds) {
+        this.devices = Collections.unmodifiableList(devices);
+        this.changedIds = Collections.unmodifiableSet(changedIds);
+    }
+
+    public List<Device> getDevices() {
+        return devices;
+    }
+
+    public Set<String> getChangedIds() {
+        return changedIds;
+    }
+
+    public boolean hasChanged(String deviceId) {
+        return changedIds.contains(deviceId);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.homie.repository;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Collects the device ids and temperature readings touched by store updates
+// and hands them to the listener at most once per UI frame, and no more often
+// than the configured publish rate. Safe to feed from any thread.
+class DeviceUpdateCoalescer {
+
+    interface Listener {
+        // Called on the main thread with everything accumulated since the last publish
+        void onCoalescedUpdate(Set<String> changedDeviceIds, Map<String, Float> temperatures);
+    }
+
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object lock = new Object();
+
+    private Set<String> dirtyIds = new LinkedHashSet<>();
+    private Map<String, Float> pendingTemperatures = new HashMap<>();
+    private boolean publishRequested;
+    private volatile long minPublishIntervalMs;
+    private long lastPublishTime;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            long wait = lastPublishTime + minPublishIntervalMs - SystemClock.uptimeMillis();
+            if (wait > 0) {
+                Choreographer.getInstance().postFrameCallbackDelayed(this, wait);
+                return;
+            }
+            publish();
+        }
+    };
+
+    private final Runnable requestFrame = () -> Choreographer.getInstance().postFrameCallback(frameCallback);
+
+    DeviceUpdateCoalescer(int maxPublishRateHz, Listener listener) {
+        this.listener = listener;
+        setMaxPublishRate(maxPublishRateHz);
+    }
+
+    void setMaxPublishRate(int maxPublishRateHz) {
+        minPublishIntervalMs = maxPublishRateHz > 0 ? 1000L / maxPublishRateHz : 0;
+    }
+
+    void markDirty(String deviceId) {
+        synchronized (lock) {
+            dirtyIds.add(deviceId);
+            requestPublishLocked();
+        }
+    }
+
+    void markTemperature(String sensorId, float temperature) {
+        synchronized (lock) {
+            pendingTemperatures.put(sensorId, temperature);
+            requestPublishLocked();
+        }
+    }
+
+    void cancel() {
+        mainHandler.removeCallbacks(requestFrame);
+        mainHandler.post(() -> Choreographer.getInstance().removeFrameCallback(frameCallback));
+        synchronized (lock) {
+            dirtyIds.clear();
+            pendingTemperatures.clear();
+            publishRequested = false;
+        }
+    }
+
+    private void requestPublishLocked() {
+        if (!publishRequested) {
+            publishRequested = true;
+            mainHandler.post(requestFrame);
+        }
+    }
+
+    private void publish() {
+        Set<String> changed;
+        Map<String, Float> temperatures;
+        synchronized (lock) {
+            changed = dirtyIds;
+            temperatures = pendingTemperatures;
+            dirtyIds = new LinkedHashSet<>();
+            pendingTemperatures = new HashMap<>();
+            publishRequested = false;
+        }
+        lastPublishTime = SystemClock.uptimeMillis();
+        if (!changed.isEmpty() || !temperatures.isEmpty()) {
+            listener.onCoalescedUpdate(changed, temperatures);
+        }
+    }
+}
@@ -3,79 +3,180 @@ package com.example.homie.repository;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 import com.example.homie.model.Device;
 import com.example.homie.model.Room;
+import com.example.homie.utils.GsonProvider;
 import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+// Write-behind record store for HomeStateStore, which holds the live
+// devices: loads them once at startup, then batches the changes it is
+// handed into the device table. Keeps no device state of its own.
 public class ESP32Repository {
+    private static final String TAG = "ESP32Repository";
     private static final String PREFS_NAME = "homie_esp32_data";
     private static final String KEY_DEVICES = "esp32_devices";
     private static final String KEY_ROOMS = "esp32_rooms";
     private static final String KEY_LAST_SYNC = "last_esp32_sync";
+    private static final String KEY_HUB_VERSIONS = "hub_versions";
     private static final String KEY_TEMPERATURE_DATA = "temperature_data";
     private static final String KEY_CONNECTION_STATE = "esp32_connection_state";
 
+    // Device writes arriving within this window are committed together
+    private static final long FLUSH_DELAY_MS = 250;
+    private static final ScheduledExecutorService DEVICE_WRITER = Executors.newSingleThreadScheduledExecutor();
+
     // Drawable resource constants (you'll need to ensure these exist in your
     // res/drawable folder)
-    private static final int R_drawable_ic_lightbulb = android.R.drawable.ic_dialog_info;
-    private static final int R_drawable_ic_settings = android.R.drawable.ic_menu_preferences;
     private static final int R_drawable_ic_home = android.R.drawable.ic_menu_view;
 
     private final SharedPreferences preferences;
+    private final DeviceDatabase deviceDatabase;
     private final Gson gson;
 
+    // Changes waiting for the next batched write
+    private final Map<String, Device> pendingWrites = new LinkedHashMap<>();
+    private final Set<String> pendingDeletes = new HashSet<>();
+    private boolean replaceOnFlush;
+    private boolean flushScheduled;
+    // Hub versions to record once the writes queued before them are committed
+    private final Map<String, HubVersion> pendingHubVersions = new HashMap<>();
+
     public ESP32Repository(Context context) {
         this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        this.gson = new Gson();
+        this.deviceDatabase = new DeviceDatabase(context);
+        this.gson = GsonProvider.get();
     }
 
-    // Device management
-    public void saveDevices(List<Device> devices) {
-        String json = gson.toJson(devices);
-        preferences.edit().putString(KEY_DEVICES, json).apply();
-    }
+    private List<Device> readDevices() {
+        List<Device> devices = new ArrayList<>();
+        // A pending replace means the table is about to be emptied (clearAllData)
+        if (!replaceOnFlush) {
+            for (String record : deviceDatabase.readAll()) {
+                Device device = gson.fromJson(record, Device.class);
+                if (device != null) {
+                    devices.add(device);
+                }
+            }
+        }
+        if (!devices.isEmpty()) {
+            return devices;
+        }
 
-    public List<Device> loadDevices() {
+        // Move the old single-blob list over to the device table
         String json = preferences.getString(KEY_DEVICES, null);
         if (json != null) {
             Type listType = new TypeToken<List<Device>>() {
             }.getType();
-            List<Device> devices = gson.fromJson(json, listType);
-            return devices != null ? devices : createDefaultDevices();
+            List<Device> legacyDevices = gson.fromJson(json, listType);
+            if (legacyDevices != null && !legacyDevices.isEmpty()) {
+                replaceOnFlush = true;
+                for (Device device : legacyDevices) {
+                    pendingWrites.put(device.getId(), device);
+                }
+                scheduleFlush();
+                return legacyDevices;
+            }
         }
-        return createDefaultDevices();
+        return devices;
     }
 
-    public void saveDevice(Device device) {
-        List<Device> devices = loadDevices();
-        boolean found = false;
+    private void markDirty(Device device) {
+        pendingDeletes.remove(device.getId());
+        pendingWrites.put(device.getId(), device);
+        scheduleFlush();
+    }
 
-        for (int i = 0; i < devices.size(); i++) {
-            if (devices.get(i).getId().equals(device.getId())) {
-                devices.set(i, device);
-                found = true;
-                break;
-            }
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            DEVICE_WRITER.schedule(this::flushPendingWrites, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
         }
+    }
 
-        if (!found) {
-            devices.add(device);
+    // Runs on the writer thread. Records are serialized under the lock so a
+    // device can't change halfway through, then written in one transaction.
+    private void flushPendingWrites() {
+        Map<String, String> writes = new LinkedHashMap<>();
+        Set<String> deletes;
+        boolean replace;
+        Map<String, HubVersion> hubVersions;
+        synchronized (this) {
+            for (Device device : pendingWrites.values()) {
+                writes.put(device.getId(), gson.toJson(device));
+            }
+            deletes = new HashSet<>(pendingDeletes);
+            replace = replaceOnFlush;
+            pendingWrites.clear();
+            pendingDeletes.clear();
+            replaceOnFlush = false;
+            flushScheduled = false;
+            hubVersions = new HashMap<>(pendingHubVersions);
+            pendingHubVersions.clear();
         }
 
-        saveDevices(devices);
+        try {
+            deviceDatabase.writeBatch(writes, deletes, replace);
+            if (replace) {
+                preferences.edit().remove(KEY_DEVICES).apply();
+            }
+            if (!hubVersions.isEmpty()) {
+                Map<String, HubVersion> stored = loadHubVersions();
+                stored.putAll(hubVersions);
+                preferences.edit()
+                        .putString(KEY_HUB_VERSIONS, gson.toJson(stored))
+                        .putLong(KEY_LAST_SYNC, System.currentTimeMillis())
+                        .apply();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write " + writes.size() + " device records", e);
+        }
     }
 
-    public Device getDeviceById(String deviceId) {
-        List<Device> devices = loadDevices();
+    // Device management
+    public synchronized void saveDevices(List<Device> devices) {
+        pendingWrites.clear();
+        pendingDeletes.clear();
         for (Device device : devices) {
-            if (device.getId().equals(deviceId)) {
-                return device;
-            }
+            pendingWrites.put(device.getId(), device);
+        }
+        replaceOnFlush = true;
+        scheduleFlush();
+    }
+
+    // Reads the table, with changes not yet written applied on top. Empty
+    // when nothing was ever stored.
+    public synchronized List<Device> loadDevices() {
+        Map<String, Device> devices = new LinkedHashMap<>();
+        for (Device device : readDevices()) {
+            devices.put(device.getId(), device);
         }
-        return null;
+        devices.keySet().removeAll(pendingDeletes);
+        devices.putAll(pendingWrites);
+        return new ArrayList<>(devices.values());
+    }
+
+    // Devices are immutable once stored (see HomeStateStore), so the
+    // instance can be queued as is
+    public synchronized void saveDevice(Device device) {
+        markDirty(device);
+    }
+
+    public synchronized void removeDevice(String deviceId) {
+        pendingWrites.remove(deviceId);
+        pendingDeletes.add(deviceId);
+        scheduleFlush();
     }
 
     // Room management
@@ -140,40 +241,32 @@ public class ESP32Repository {
         return preferences.getLong(KEY_LAST_SYNC, 0);
     }
 
-    public boolean needsSync() {
-        long lastSync = getLastSyncTime();
-        long currentTime = System.currentTimeMillis();
-        return (currentTime - lastSync) > 300000; // 5 minutes
+    // The hub state version the stored devices reflect. It's written with the
+    // next device batch, after the devices that came with it, so the stored
+    // version is never ahead of the stored devices.
+    public synchronized void saveHubVersion(String hubId, HubVersion version) {
+        pendingHubVersions.put(hubId, version);
+        scheduleFlush();
     }
 
-    // Create default devices for ESP32
-    private List<Device> createDefaultDevices() {
-        List<Device> devices = new ArrayList<>();
-
-        String[] names = {
-                "Living Room Light", "Kitchen Light", "Bedroom Light", "Bathroom Light",
-                "Living Room Fan", "Bedroom Fan", "Kitchen Exhaust", "Garden Light"
-        };
-
-        String[] types = { "light", "light", "light", "light", "fan", "fan", "fan", "light" };
-        String[] rooms = { "Living Room", "Kitchen", "Bedroom", "Bathroom", "Living Room", "Bedroom", "Kitchen",
-                "Garden" };
-        int[] pins = { 16, 17, 18, 19, 21, 22, 23, 25 };
-        int[] icons = { R_drawable_ic_lightbulb, R_drawable_ic_lightbulb, R_drawable_ic_lightbulb,
-                R_drawable_ic_lightbulb,
-                R_drawable_ic_settings, R_drawable_ic_settings, R_drawable_ic_settings, R_drawable_ic_lightbulb };
-
-        for (int i = 0; i < names.length; i++) {
-            String deviceId = "device_" + i;
-            String esp32DeviceId = "device_" + i;
-
-            Device device = new Device(deviceId, names[i], types[i], rooms[i], false, icons[i], pins[i], esp32DeviceId);
-            device.setESP32Controlled(true);
-            device.setOnline(false); // Initially offline until ESP32 connection is established
-            devices.add(device);
+    // By hub id; hubs never synced with versions are missing
+    public Map<String, HubVersion> loadHubVersions() {
+        String json = preferences.getString(KEY_HUB_VERSIONS, null);
+        if (json != null) {
+            Type mapType = new TypeToken<Map<String, HubVersion>>() {
+            }.getType();
+            Map<String, HubVersion> versions = gson.fromJson(json, mapType);
+            if (versions != null) {
+                return versions;
+            }
         }
+        return new HashMap<>();
+    }
 
-        return devices;
+    public boolean needsSync() {
+        long lastSync = getLastSyncTime();
+        long currentTime = System.currentTimeMillis();
+        return (currentTime - lastSync) > 300000; // 5 minutes
     }
 
     // Create default rooms
@@ -190,99 +283,21 @@ public class ESP32Repository {
         return rooms;
     }
 
-    // Device filtering and search
-    public List<Device> getDevicesByRoom(String roomName) {
-        List<Device> allDevices = loadDevices();
-        List<Device> roomDevices = new ArrayList<>();
-
-        for (Device device : allDevices) {
-            if (roomName.equals(device.getRoom())) {
-                roomDevices.add(device);
-            }
-        }
-
-        return roomDevices;
-    }
-
-    public List<Device> getDevicesByType(String deviceType) {
-        List<Device> allDevices = loadDevices();
-        List<Device> typeDevices = new ArrayList<>();
-
-        for (Device device : allDevices) {
-            if (deviceType.equalsIgnoreCase(device.getType())) {
-                typeDevices.add(device);
-            }
-        }
-
-        return typeDevices;
-    }
-
-    public List<Device> getActiveDevices() {
-        List<Device> allDevices = loadDevices();
-        List<Device> activeDevices = new ArrayList<>();
-
-        for (Device device : allDevices) {
-            if (device.isActive()) {
-                activeDevices.add(device);
-            }
-        }
-
-        return activeDevices;
-    }
-
-    public List<Device> getOnlineDevices() {
-        List<Device> allDevices = loadDevices();
-        List<Device> onlineDevices = new ArrayList<>();
-
-        for (Device device : allDevices) {
-            if (device.isOnline()) {
-                onlineDevices.add(device);
-            }
-        }
-
-        return onlineDevices;
-    }
-
-    // Statistics and analytics
-    public Map<String, Integer> getRoomDeviceCounts() {
-        List<Device> devices = loadDevices();
-        Map<String, Integer> roomCounts = new HashMap<>();
-
-        for (Device device : devices) {
-            String room = device.getRoom();
-            roomCounts.put(room, roomCounts.getOrDefault(room, 0) + 1);
-        }
-
-        return roomCounts;
-    }
-
-    public Map<String, Integer> getDeviceTypeCounts() {
-        List<Device> devices = loadDevices();
-        Map<String, Integer> typeCounts = new HashMap<>();
-
-        for (Device device : devices) {
-            String type = device.getType();
-            typeCounts.put(type, typeCounts.getOrDefault(type, 0) + 1);
-        }
-
-        return typeCounts;
-    }
-
-    public int getActiveDeviceCount() {
-        return getActiveDevices().size();
-    }
-
-    public int getOnlineDeviceCount() {
-        return getOnlineDevices().size();
-    }
-
     // Utility methods
-    public void clearAllData() {
+    public synchronized void clearAllData() {
+        pendingWrites.clear();
+        pendingDeletes.clear();
+        pendingHubVersions.clear();
+        replaceOnFlush = true;
+        scheduleFlush();
         preferences.edit().clear().apply();
     }
 
-    public boolean hasStoredData() {
-        return preferences.contains(KEY_DEVICES);
+    public synchronized boolean hasStoredData() {
+        if (!pendingWrites.isEmpty()) {
+            return true;
+        }
+        return !replaceOnFlush && (deviceDatabase.count() > 0 || preferences.contains(KEY_DEVICES));
     }
 
     public Map<String, Object> getAllDataForSync() {
@@ -297,81 +312,58 @@ public class ESP32Repository {
         return syncData;
     }
 
-    // Bulk operations
-    public void updateDevicesFromESP32(List<Device> esp32Devices) {
-        List<Device> localDevices = loadDevices();
-        boolean updated = false;
-
-        for (Device esp32Device : esp32Devices) {
-            for (int i = 0; i < localDevices.size(); i++) {
-                Device localDevice = localDevices.get(i);
-                if (localDevice.getId().equals(esp32Device.getId())) {
-                    // Update state and connection info from ESP32
-                    localDevice.setActive(esp32Device.isActive());
-                    localDevice.setOnline(true);
-                    localDevice.setLastUpdate(esp32Device.getLastUpdate());
-                    if (esp32Device.getTemperature() != null) {
-                        localDevice.setTemperature(esp32Device.getTemperature());
-                    }
-                    localDevice.markESP32Synced();
-                    updated = true;
-                    break;
-                }
-            }
-        }
-
-        if (updated) {
-            saveDevices(localDevices);
-        }
-    }
-
-    public void markAllDevicesOffline() {
-        List<Device> devices = loadDevices();
-        boolean updated = false;
-
-        for (Device device : devices) {
-            if (device.isESP32Controlled() && device.isOnline()) {
-                device.setOnline(false);
-                updated = true;
-            }
-        }
-
-        if (updated) {
-            saveDevices(devices);
-        }
-    }
-
     // Export/Import functionality
     public String exportData() {
         return gson.toJson(getAllDataForSync());
     }
 
+    // Single pass over the export: devices and rooms are read straight into
+    // objects, everything else is skipped
     public boolean importData(String jsonData) {
-        try {
-            Type mapType = new TypeToken<Map<String, Object>>() {
-            }.getType();
-            Map<String, Object> data = gson.fromJson(jsonData, mapType);
+        try (JsonReader reader = new JsonReader(new StringReader(jsonData))) {
+            List<Device> devices = null;
+            List<Room> rooms = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("devices".equals(name)) {
+                    devices = readList(reader, gson.getAdapter(Device.class));
+                } else if ("rooms".equals(name)) {
+                    rooms = readList(reader, gson.getAdapter(Room.class));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
 
-            if (data.containsKey("devices")) {
-                String devicesJson = gson.toJson(data.get("devices"));
-                Type devicesType = new TypeToken<List<Device>>() {
-                }.getType();
-                List<Device> devices = gson.fromJson(devicesJson, devicesType);
+            if (devices != null) {
                 saveDevices(devices);
             }
-
-            if (data.containsKey("rooms")) {
-                String roomsJson = gson.toJson(data.get("rooms"));
-                Type roomsType = new TypeToken<List<Room>>() {
-                }.getType();
-                List<Room> rooms = gson.fromJson(roomsJson, roomsType);
+            if (rooms != null) {
                 saveRooms(rooms);
             }
-
             return true;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
     }
+
+    private static <T> List<T> readList(JsonReader reader, TypeAdapter<T> adapter) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        List<T> items = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            T item = adapter.read(reader);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        reader.endArray();
+        return items;
+    }
 }
@@ -0,0 +1,717 @@
+package com.example.homie.repository;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import com.example.homie.R;
+import com.example.homie.model.Device;
+import com.example.homie.model.DeviceControl;
+import com.example.homie.model.DeviceType;
+import com.example.homie.model.Room;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// The app's one copy of home state. Persisted devices, hub messages and UI
+// edits all write here, and every screen reads from here through LiveData
+// published at most once per frame. Stored devices are never modified after
+// they're put: updates copy, edit and swap, so any Device handed out can be
+// read on any thread without locking. Changes are persisted write-behind
+// through ESP32Repository once init() has been called.
+public final class HomeStateStore {
+    private static final String TAG = "HomeStateStore";
+    private static final int DEFAULT_MAX_PUBLISH_RATE_HZ = 20;
+
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor();
+    private static HomeStateStore instance;
+
+    public interface Mutator {
+        void apply(Device device);
+    }
+
+    public interface Filter {
+        boolean matches(Device device);
+    }
+
+    // Sends device commands to the hub. WebSocketService registers itself
+    // while it runs; without one, changes stay local.
+    public interface DeviceController {
+        CompletableFuture<?> setDeviceState(String deviceId, boolean state);
+
+        // One batch; completes with the ids that didn't switch
+        CompletableFuture<List<String>> setDevicesState(List<String> deviceIds, boolean state);
+
+        CompletableFuture<?> updateDevice(Device device);
+
+        // Intermediate slider value; may be dropped
+        void streamLevel(String deviceId, DeviceControl control, int value);
+
+        CompletableFuture<?> setLevel(String deviceId, DeviceControl control, int value);
+    }
+
+    // Guarded by this
+    private final DeviceIndex index = new DeviceIndex();
+    private final Map<String, Long> versions = new HashMap<>();
+    private final Map<String, Room> roomCatalogue = new LinkedHashMap<>();
+    private final RoomAggregates roomAggregates = new RoomAggregates();
+    // Rooms whose devices or totals changed since the last publish
+    private final Set<String> dirtyRooms = new HashSet<>();
+    private long version = 0;
+    // By hub id, the hub state the devices reflect. Missing until a
+    // versioned hub has synced or been restored.
+    private final Map<String, HubVersion> hubVersions = new HashMap<>();
+    private ESP32Repository persistence;
+    // Device writes for persistence, by id; null means removed. Queued under
+    // this and handed to the repository after the lock is released.
+    private final Map<String, Device> persistQueue = new LinkedHashMap<>();
+    // Held while draining, so queued writes reach the repository in order
+    private final Object persistLock = new Object();
+
+    private volatile DeviceController controller;
+
+    private final MutableLiveData<List<Device>> devices = new MutableLiveData<>();
+    private final MutableLiveData<DeviceSnapshot> deviceSnapshots = new MutableLiveData<>();
+    private final MutableLiveData<List<Room>> rooms;
+    private final MutableLiveData<Map<String, Float>> temperatures = new MutableLiveData<>();
+    // Last reading of every sensor, in the order they first reported. Main
+    // thread only.
+    private final Map<String, Float> latestTemperatures = new LinkedHashMap<>();
+    // Per-room projections, created on first request. Main thread only.
+    private final Map<String, MutableLiveData<List<Device>>> roomDeviceViews = new HashMap<>();
+    private final Map<String, MutableLiveData<Room>> roomSummaryViews = new HashMap<>();
+    private final DeviceUpdateCoalescer updateCoalescer = new DeviceUpdateCoalescer(
+            DEFAULT_MAX_PUBLISH_RATE_HZ, this::publish);
+
+    private HomeStateStore() {
+        addRoom(new Room("1", "Living Room", R.drawable.ic_home));
+        addRoom(new Room("2", "Kitchen", R.drawable.ic_home));
+        addRoom(new Room("3", "Bedroom", R.drawable.ic_home));
+        addRoom(new Room("4", "Bathroom", R.drawable.ic_home));
+        addRoom(new Room("5", "Garage", R.drawable.ic_home));
+        addRoom(new Room("6", "Office", R.drawable.ic_home));
+        addRoom(new Room("7", "Dining Room", R.drawable.ic_home));
+        addRoom(new Room("8", "Balcony", R.drawable.ic_home));
+        rooms = new MutableLiveData<>(buildRooms());
+    }
+
+    public static synchronized HomeStateStore getInstance() {
+        if (instance == null) {
+            instance = new HomeStateStore();
+        }
+        return instance;
+    }
+
+    // Attaches persistence and restores the last known devices in the
+    // background. Later calls do nothing.
+    public void init(Context context) {
+        ESP32Repository repository;
+        synchronized (this) {
+            if (persistence != null) {
+                return;
+            }
+            persistence = new ESP32Repository(context.getApplicationContext());
+            repository = persistence;
+        }
+        LOADER.execute(() -> restore(repository.loadDevices(), repository.loadHubVersions()));
+    }
+
+    // Stored devices only fill an empty store; if the hub has already sent
+    // its list, that wins. Hub versions come back only with the devices
+    // they describe.
+    private void restore(List<Device> stored, Map<String, HubVersion> storedHubVersions) {
+        synchronized (this) {
+            if (index.size() > 0) {
+                return;
+            }
+            for (Device device : stored) {
+                indexLocked(device);
+            }
+            hubVersions.putAll(storedHubVersions);
+        }
+        Log.d(TAG, "Restored " + stored.size() + " devices");
+        for (Device device : stored) {
+            updateCoalescer.markDirty(device.getId());
+        }
+    }
+
+    // ===== Writes, from any thread =====
+
+    // Takes ownership of the device; the caller must not modify it afterwards.
+    // Returns false if the same state was already stored.
+    public boolean put(Device device) {
+        if (device.getIconResource() == 0) {
+            device.setIconResource(defaultIcon(device.getDeviceType()));
+        }
+        synchronized (this) {
+            Device current = index.get(device.getId());
+            if (current != null && sameState(current, device)) {
+                return false;
+            }
+            storeLocked(device);
+        }
+        drainPersistQueue();
+        updateCoalescer.markDirty(device.getId());
+        return true;
+    }
+
+    // Applies the mutator to a copy of the device and stores the copy.
+    // Returns the stored device, or null if the id is unknown.
+    public Device update(String id, Mutator mutator) {
+        Device copy;
+        synchronized (this) {
+            Device current = index.get(id);
+            if (current == null) {
+                return null;
+            }
+            copy = new Device(current);
+            mutator.apply(copy);
+            if (sameState(current, copy)) {
+                return current;
+            }
+            storeLocked(copy);
+        }
+        drainPersistQueue();
+        updateCoalescer.markDirty(id);
+        return copy;
+    }
+
+    public void updateTemperature(String id, float temperature) {
+        updateCoalescer.markTemperature(id, temperature);
+        update(id, device -> {
+            device.setTemperature((double) temperature);
+            device.setLastUpdate(System.currentTimeMillis());
+        });
+    }
+
+    public boolean remove(String id) {
+        synchronized (this) {
+            if (!removeLocked(id)) {
+                return false;
+            }
+        }
+        drainPersistQueue();
+        updateCoalescer.markDirty(id);
+        return true;
+    }
+
+    // Called after the devices of a hub sync are stored. The version is
+    // handed to the repository after those devices.
+    public void setHubVersion(String hubId, HubVersion version) {
+        ESP32Repository repository;
+        synchronized (this) {
+            hubVersions.put(hubId, version);
+            repository = persistence;
+        }
+        if (repository == null) {
+            return;
+        }
+        synchronized (persistLock) {
+            drainPersistQueueLocked();
+            repository.saveHubVersion(hubId, version);
+        }
+    }
+
+    // A hub is unreachable: the devices in its scope stay offline until its
+    // next device dump
+    public void markHubDevicesOffline(Filter scope) {
+        List<String> changed = new ArrayList<>();
+        synchronized (this) {
+            for (Device device : index.online()) {
+                if (scope.matches(device)) {
+                    Device copy = new Device(device);
+                    copy.setOnline(false);
+                    storeLocked(copy);
+                    changed.add(copy.getId());
+                }
+            }
+        }
+        drainPersistQueue();
+        for (String id : changed) {
+            updateCoalescer.markDirty(id);
+        }
+    }
+
+    // Drops every device in scope that isn't in ids and returns the ids that
+    // were removed
+    public List<String> retainAll(Set<String> ids, Filter scope) {
+        List<String> removed = new ArrayList<>();
+        synchronized (this) {
+            for (Device device : index.all()) {
+                if (!ids.contains(device.getId()) && scope.matches(device) && removeLocked(device.getId())) {
+                    removed.add(device.getId());
+                }
+            }
+        }
+        drainPersistQueue();
+        for (String id : removed) {
+            updateCoalescer.markDirty(id);
+        }
+        return removed;
+    }
+
+    public void putRoom(Room room) {
+        List<Room> roomList;
+        synchronized (this) {
+            addRoom(new Room(room));
+            roomList = buildRooms();
+        }
+        // Room edits are rare, so they skip the coalescer
+        rooms.postValue(roomList);
+    }
+
+    private void storeLocked(Device device) {
+        indexLocked(device);
+        if (persistence != null) {
+            persistQueue.put(device.getId(), device);
+        }
+    }
+
+    // Called after releasing the lock. Repository calls never run under the
+    // store lock, so a slow one can't hold up readers.
+    private void drainPersistQueue() {
+        synchronized (persistLock) {
+            drainPersistQueueLocked();
+        }
+    }
+
+    // Holding persistLock but not this
+    private void drainPersistQueueLocked() {
+        ESP32Repository repository;
+        Map<String, Device> queued;
+        synchronized (this) {
+            if (persistQueue.isEmpty()) {
+                return;
+            }
+            repository = persistence;
+            queued = new LinkedHashMap<>(persistQueue);
+            persistQueue.clear();
+        }
+        for (Map.Entry<String, Device> entry : queued.entrySet()) {
+            if (entry.getValue() != null) {
+                repository.saveDevice(entry.getValue());
+            } else {
+                repository.removeDevice(entry.getKey());
+            }
+        }
+    }
+
+    // Swaps the device into the index and moves the room totals from the
+    // device it replaces to the new one
+    private void indexLocked(Device device) {
+        Device previous = index.get(device.getId());
+        if (previous != null) {
+            roomAggregates.remove(previous);
+            markRoomDirty(previous.getRoom());
+        }
+        index.put(device);
+        roomAggregates.add(device);
+        markRoomDirty(device.getRoom());
+        versions.put(device.getId(), ++version);
+    }
+
+    private boolean removeLocked(String id) {
+        Device removed = index.remove(id);
+        if (removed == null) {
+            return false;
+        }
+        roomAggregates.remove(removed);
+        markRoomDirty(removed.getRoom());
+        versions.remove(id);
+        version++;
+        if (persistence != null) {
+            persistQueue.put(id, null);
+        }
+        return true;
+    }
+
+    // ===== Commands =====
+
+    public void setDeviceController(DeviceController controller) {
+        this.controller = controller;
+    }
+
+    public void clearDeviceController(DeviceController controller) {
+        if (this.controller == controller) {
+            this.controller = null;
+        }
+    }
+
+    // Shows the new state right away and sends it to the hub. If the hub
+    // rejects it, or it expires in the offline queue, the old state comes
+    // back unless the device's state has changed since.
+    public void requestDeviceState(String id, boolean state) {
+        boolean previous;
+        synchronized (this) {
+            Device current = index.get(id);
+            if (current == null || current.isActive() == state) {
+                return;
+            }
+            previous = current.isActive();
+            Device copy = new Device(current);
+            copy.setActive(state);
+            storeLocked(copy);
+        }
+        drainPersistQueue();
+        updateCoalescer.markDirty(id);
+
+        DeviceController hub = controller;
+        if (hub != null) {
+            hub.setDeviceState(id, state).whenComplete((reply, error) -> {
+                if (error != null) {
+                    Log.w(TAG, "Hub did not apply state for " + id + ", reverting", error);
+                    revertState(id, state, previous);
+                }
+            });
+        }
+    }
+
+    // The same for several devices, sent to the hub as one batch. Completes
+    // with the ids the hub didn't switch, which have been reverted.
+    public CompletableFuture<List<String>> requestDevicesState(Collection<String> ids, boolean state) {
+        List<String> changed = new ArrayList<>();
+        synchronized (this) {
+            for (String id : ids) {
+                Device current = index.get(id);
+                if (current == null || current.isActive() == state) {
+                    continue;
+                }
+                Device copy = new Device(current);
+                copy.setActive(state);
+                storeLocked(copy);
+                changed.add(id);
+            }
+        }
+        drainPersistQueue();
+        for (String id : changed) {
+            updateCoalescer.markDirty(id);
+        }
+
+        DeviceController hub = controller;
+        if (hub == null || changed.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        return hub.setDevicesState(changed, state).handle((failed, error) -> {
+            List<String> notApplied = error != null ? changed : failed;
+            if (!notApplied.isEmpty()) {
+                Log.w(TAG, "Hub did not apply state for " + notApplied + ", reverting", error);
+            }
+            for (String id : notApplied) {
+                revertState(id, state, !state);
+            }
+            return notApplied;
+        });
+    }
+
+    // Applies an edit's name, type and room to the stored device and sends
+    // them to the hub. Nothing else is taken from the edited copy, which may
+    // be older than the hub state the store has since received; power and
+    // levels have their own requests. If the hub doesn't apply the edit, the
+    // old values come back unless they've been edited again since.
+    public void requestDeviceUpdate(Device edited) {
+        String id = edited.getId();
+        Device previous;
+        Device copy;
+        synchronized (this) {
+            previous = index.get(id);
+            if (previous == null) {
+                return;
+            }
+            copy = new Device(previous);
+            applyEdit(copy, edited);
+            if (sameState(previous, copy)) {
+                return;
+            }
+            storeLocked(copy);
+        }
+        drainPersistQueue();
+        updateCoalescer.markDirty(id);
+
+        DeviceController hub = controller;
+        if (hub != null) {
+            hub.updateDevice(copy).whenComplete((reply, error) -> {
+                if (error != null) {
+                    Log.w(TAG, "Hub did not apply edit for " + id + ", reverting", error);
+                    revertEdit(id, copy, previous);
+                }
+            });
+        }
+    }
+
+    // Slider moves. Every value shows locally right away; while dragging the
+    // hub gets a rate-capped stream, and on release (done) the final value
+    // is sent reliably.
+    public void requestLevel(String id, DeviceControl control, int value, boolean done) {
+        update(id, device -> control.set(device, value));
+
+        DeviceController hub = controller;
+        if (hub == null) {
+            return;
+        }
+        if (done) {
+            hub.setLevel(id, control, value).whenComplete((reply, error) -> {
+                if (error != null) {
+                    Log.w(TAG, "Hub did not apply " + control.getName() + " for " + id, error);
+                }
+            });
+        } else {
+            hub.streamLevel(id, control, value);
+        }
+    }
+
+    private static void applyEdit(Device device, Device edit) {
+        device.setName(edit.getName());
+        device.setType(edit.getType());
+        device.setRoom(edit.getRoom());
+        device.setRoomId(edit.getRoomId());
+    }
+
+    private void revertEdit(String id, Device requested, Device previous) {
+        update(id, device -> {
+            if (Objects.equals(device.getName(), requested.getName())
+                    && Objects.equals(device.getType(), requested.getType())
+                    && Objects.equals(device.getRoom(), requested.getRoom())
+                    && Objects.equals(device.getRoomId(), requested.getRoomId())) {
+                applyEdit(device, previous);
+            }
+        });
+    }
+
+    // Only the state is compared: other fields may have changed meanwhile,
+    // e.g. the device coming back online on reconnect, and a sync won't
+    // resend a device whose hub state didn't change
+    private void revertState(String id, boolean requested, boolean previous) {
+        update(id, device -> {
+            if (device.isActive() == requested) {
+                device.setActive(previous);
+            }
+        });
+    }
+
+    // ===== Reads, from any thread =====
+
+    public synchronized Device get(String id) {
+        return index.get(id);
+    }
+
+    public synchronized List<Device> getAll() {
+        return index.all();
+    }
+
+    public synchronized List<Device> getByRoom(String room) {
+        return index.byRoom(room);
+    }
+
+    public synchronized List<Device> getActive() {
+        return index.active();
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized long getVersion(String id) {
+        Long deviceVersion = versions.get(id);
+        return deviceVersion != null ? deviceVersion : 0;
+    }
+
+    // Changes whenever any device is stored or removed
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // Null if the hub's devices were never synced with a version
+    public synchronized HubVersion getHubVersion(String hubId) {
+        return hubVersions.get(hubId);
+    }
+
+    public synchronized Room getRoomById(String id) {
+        Room known = roomCatalogue.get(id);
+        if (known != null) {
+            return summarizeLocked(known.getName());
+        }
+        // Rooms only devices mention use their name as id
+        return roomAggregates.roomNames().contains(id) ? summarizeLocked(id) : null;
+    }
+
+    public synchronized List<Room> getRoomList() {
+        return buildRooms();
+    }
+
+    // ===== Observation, on the main thread =====
+
+    public LiveData<List<Device>> getDevices() {
+        return devices;
+    }
+
+    public LiveData<DeviceSnapshot> getDeviceSnapshots() {
+        return deviceSnapshots;
+    }
+
+    public LiveData<List<Room>> getRooms() {
+        return rooms;
+    }
+
+    // Every sensor's last reading, republished whenever any of them changes
+    public LiveData<Map<String, Float>> getTemperatures() {
+        return temperatures;
+    }
+
+    // Devices in one room, republished only when that room is touched
+    public LiveData<List<Device>> getRoomDevices(String roomName) {
+        MutableLiveData<List<Device>> view = roomDeviceViews.get(roomName);
+        if (view == null) {
+            synchronized (this) {
+                view = new MutableLiveData<>(index.byRoom(roomName));
+            }
+            roomDeviceViews.put(roomName, view);
+        }
+        return view;
+    }
+
+    // One room with its counts and average temperature
+    public LiveData<Room> getRoomSummary(String roomName) {
+        MutableLiveData<Room> view = roomSummaryViews.get(roomName);
+        if (view == null) {
+            synchronized (this) {
+                view = new MutableLiveData<>(summarizeLocked(roomName));
+            }
+            roomSummaryViews.put(roomName, view);
+        }
+        return view;
+    }
+
+    public void setMaxPublishRate(int updatesPerSecond) {
+        updateCoalescer.setMaxPublishRate(updatesPerSecond);
+    }
+
+    private void publish(Set<String> changedIds, Map<String, Float> changedTemperatures) {
+        if (!changedIds.isEmpty()) {
+            List<Device> all;
+            List<Room> roomList = null;
+            Map<String, List<Device>> changedRoomDevices = new HashMap<>();
+            Map<String, Room> changedSummaries = new HashMap<>();
+            synchronized (this) {
+                all = index.all();
+                if (!dirtyRooms.isEmpty()) {
+                    roomList = buildRooms();
+                    for (String name : dirtyRooms) {
+                        if (roomDeviceViews.containsKey(name)) {
+                            changedRoomDevices.put(name, index.byRoom(name));
+                        }
+                        if (roomSummaryViews.containsKey(name)) {
+                            changedSummaries.put(name, summarizeLocked(name));
+                        }
+                    }
+                    dirtyRooms.clear();
+                }
+            }
+            DeviceSnapshot snapshot = new DeviceSnapshot(all, changedIds);
+            deviceSnapshots.setValue(snapshot);
+            devices.setValue(snapshot.getDevices());
+            if (roomList != null) {
+                rooms.setValue(roomList);
+            }
+            for (Map.Entry<String, List<Device>> entry : changedRoomDevices.entrySet()) {
+                roomDeviceViews.get(entry.getKey()).setValue(entry.getValue());
+            }
+            for (Map.Entry<String, Room> entry : changedSummaries.entrySet()) {
+                roomSummaryViews.get(entry.getKey()).setValue(entry.getValue());
+            }
+        }
+        if (!changedTemperatures.isEmpty()) {
+            latestTemperatures.putAll(changedTemperatures);
+            temperatures.setValue(Collections.unmodifiableMap(new LinkedHashMap<>(latestTemperatures)));
+        }
+    }
+
+    // Known rooms first, then any room only devices mention, each with its
+    // running totals. Costs one step per room, not per device. Caller holds
+    // the lock (or is the constructor).
+    private List<Room> buildRooms() {
+        Map<String, Room> byName = new LinkedHashMap<>();
+        for (Room room : roomCatalogue.values()) {
+            byName.put(room.getName(), new Room(room));
+        }
+        for (String name : roomAggregates.roomNames()) {
+            if (!byName.containsKey(name)) {
+                byName.put(name, new Room(name, name, R.drawable.ic_home));
+            }
+        }
+        for (Room room : byName.values()) {
+            roomAggregates.fill(room);
+        }
+        return new ArrayList<>(byName.values());
+    }
+
+    private Room summarizeLocked(String roomName) {
+        Room room = null;
+        for (Room known : roomCatalogue.values()) {
+            if (known.getName().equals(roomName)) {
+                room = new Room(known);
+                break;
+            }
+        }
+        if (room == null) {
+            room = new Room(roomName, roomName, R.drawable.ic_home);
+        }
+        roomAggregates.fill(room);
+        return room;
+    }
+
+    private void markRoomDirty(String roomName) {
+        if (roomName != null) {
+            dirtyRooms.add(roomName);
+        }
+    }
+
+    private void addRoom(Room room) {
+        roomCatalogue.put(room.getId(), room);
+    }
+
+    // Hub devices carry no icon of their own
+    private static int defaultIcon(DeviceType type) {
+        switch (type) {
+            case LIGHT:
+                return R.drawable.ic_lightbulb;
+            case THERMOSTAT:
+            case TEMPERATURE_SENSOR:
+                return R.drawable.ic_thermostat;
+            case LOCK:
+                return R.drawable.ic_lock;
+            default:
+                return R.drawable.ic_devices;
+        }
+    }
+
+    // Whether storing b in place of a would change anything a screen or the
+    // hub cares about; lastUpdate alone doesn't count
+    private static boolean sameState(Device a, Device b) {
+        return a.isActive() == b.isActive()
+                && a.isOnline() == b.isOnline()
+                && a.isESP32Controlled() == b.isESP32Controlled()
+                && a.needsESP32Sync() == b.needsESP32Sync()
+                && a.getPin() == b.getPin()
+                && a.getIconResource() == b.getIconResource()
+                && a.getBrightness() == b.getBrightness()
+                && a.getSpeed() == b.getSpeed()
+                && a.getVolume() == b.getVolume()
+                && Objects.equals(a.getTemperature(), b.getTemperature())
+                && Objects.equals(a.getName(), b.getName())
+                && Objects.equals(a.getType(), b.getType())
+                && Objects.equals(a.getRoom(), b.getRoom())
+                && Objects.equals(a.getRoomId(), b.getRoomId())
+                && Objects.equals(a.getStatus(), b.getStatus())
+                && Objects.equals(a.getEsp32DeviceId(), b.getEsp32DeviceId());
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.homie.repository;
+
+// Where a hub's state stood when its devices were last synced: the hub's
+// boot (epoch) and its state version within that boot
+public final class HubVersion {
+    private final long epoch;
+    private final long version;
+
+    public HubVersion(long epoch, long version) {
+        this.epoch = epoch;
+        this.version = version;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
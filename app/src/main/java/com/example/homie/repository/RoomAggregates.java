@@ -0,0 +1,80 @@
+package com.example.homie.repository;
+
+import com.example.homie.model.Device;
+import com.example.homie.model.Room;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Per-room totals kept up to date by adding each stored device and
+// subtracting the one it replaced, so no change ever recounts a room.
+// Not thread-safe; HomeStateStore guards access.
+class RoomAggregates {
+    private static final class Totals {
+        int devices;
+        int active;
+        int online;
+        int withTemperature;
+        double temperatureSum;
+    }
+
+    private final Map<String, Totals> byRoom = new HashMap<>();
+
+    void add(Device device) {
+        apply(device, 1);
+    }
+
+    void remove(Device device) {
+        apply(device, -1);
+    }
+
+    Set<String> roomNames() {
+        return byRoom.keySet();
+    }
+
+    // Copies the totals for the room's name onto it
+    void fill(Room room) {
+        Totals totals = byRoom.get(room.getName());
+        if (totals == null) {
+            room.setDeviceCount(0);
+            room.setActiveDeviceCount(0);
+            room.setOnlineDeviceCount(0);
+            room.setAverageTemperature(null);
+            return;
+        }
+        room.setDeviceCount(totals.devices);
+        room.setActiveDeviceCount(totals.active);
+        room.setOnlineDeviceCount(totals.online);
+        room.setAverageTemperature(totals.withTemperature > 0
+                ? totals.temperatureSum / totals.withTemperature : null);
+    }
+
+    private void apply(Device device, int sign) {
+        String room = device.getRoom();
+        if (room == null) {
+            return;
+        }
+        Totals totals = byRoom.get(room);
+        if (totals == null) {
+            totals = new Totals();
+            byRoom.put(room, totals);
+        }
+        totals.devices += sign;
+        if (device.isActive()) {
+            totals.active += sign;
+        }
+        if (device.isOnline()) {
+            totals.online += sign;
+        }
+        if (device.getTemperature() != null) {
+            totals.withTemperature += sign;
+            totals.temperatureSum += sign * device.getTemperature();
+        }
+        if (totals.devices == 0) {
+            byRoom.remove(room);
+        } else if (totals.withTemperature == 0) {
+            // Don't let rounding from past adds and removes linger
+            totals.temperatureSum = 0;
+        }
+    }
+}
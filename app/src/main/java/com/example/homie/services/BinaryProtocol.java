@@ -0,0 +1,98 @@
+package com.example.homie.services;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Compact framing used over WebSocket binary frames once the hub has accepted
+// the "bin1" protocol in its hello_ack. Every frame is a one-byte tag followed
+// by a varint device index (the position of the device in initial_devices)
+// and a fixed-size payload. Floats are IEEE 754, little-endian like the ESP32.
+//
+//   0x01 device state    [tag][index][flags]        flags bit 0 = isActive
+//   0x02 temperature     [tag][index][float32]
+//   0x03 device level    [tag][index][control][value]
+//   0x12 set level       [tag][index][control][value]  app -> hub, streamed
+//
+// control is DeviceControl.getCode(), value a byte within its range. Tag
+// 0x11 (toggle) is no longer sent: frames carry no seq, so toggles go as
+// JSON to get an ack.
+final class BinaryProtocol {
+    static final String PROTOCOL_NAME = "bin1";
+
+    static final byte TAG_DEVICE_STATE = 0x01;
+    static final byte TAG_TEMPERATURE = 0x02;
+    static final byte TAG_DEVICE_LEVEL = 0x03;
+    static final byte TAG_SET_LEVEL = 0x12;
+
+    static final int FLAG_ACTIVE = 0x01;
+
+    private static final int MAX_VARINT_BYTES = 5;
+
+    interface FrameHandler {
+        void onDeviceState(int index, boolean active);
+
+        void onTemperature(int index, float celsius);
+
+        void onDeviceLevel(int index, int control, int value);
+    }
+
+    private BinaryProtocol() {
+    }
+
+    // Returns false if the frame has a tag this version doesn't know
+    static boolean decode(ByteBuffer frame, FrameHandler handler) {
+        frame.order(ByteOrder.LITTLE_ENDIAN);
+        byte tag = frame.get();
+        switch (tag) {
+            case TAG_DEVICE_STATE: {
+                int index = readVarint(frame);
+                int flags = frame.get() & 0xFF;
+                handler.onDeviceState(index, (flags & FLAG_ACTIVE) != 0);
+                return true;
+            }
+            case TAG_TEMPERATURE: {
+                int index = readVarint(frame);
+                handler.onTemperature(index, frame.getFloat());
+                return true;
+            }
+            case TAG_DEVICE_LEVEL: {
+                int index = readVarint(frame);
+                int control = frame.get() & 0xFF;
+                handler.onDeviceLevel(index, control, frame.get() & 0xFF);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    static ByteBuffer encodeSetLevel(int index, int control, int value) {
+        ByteBuffer frame = ByteBuffer.allocate(3 + MAX_VARINT_BYTES);
+        frame.put(TAG_SET_LEVEL);
+        writeVarint(frame, index);
+        frame.put((byte) control);
+        frame.put((byte) value);
+        frame.flip();
+        return frame;
+    }
+
+    static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_BYTES; shift += 7) {
+            int b = buffer.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
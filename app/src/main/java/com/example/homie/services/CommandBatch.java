@@ -0,0 +1,115 @@
+package com.example.homie.services;
+
+import com.example.homie.model.Device;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Several device operations sent to the hub as a single "batch" frame. The hub
+// answers with one batch_result, matched by seq, listing a result per operation.
+public final class CommandBatch {
+
+    public static final class Result {
+        private final boolean ok;
+        private final String error;
+
+        Result(boolean ok, String error) {
+            this.ok = ok;
+            this.error = error;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final JsonArray operations = new JsonArray();
+
+    public CommandBatch toggle(String deviceId, boolean state) {
+        JsonObject op = new JsonObject();
+        op.addProperty("op", "toggle_device");
+        op.addProperty("device_id", deviceId);
+        op.addProperty("state", state);
+        operations.add(op);
+        return this;
+    }
+
+    public CommandBatch update(Device device) {
+        JsonObject op = new JsonObject();
+        op.addProperty("op", "update_device");
+        op.addProperty("device_id", device.getId());
+        op.addProperty("name", device.getName());
+        op.addProperty("type", device.getType());
+        op.addProperty("room", device.getRoom());
+        operations.add(op);
+        return this;
+    }
+
+    // Copies an operation from another batch, e.g. when splitting one by hub
+    CommandBatch add(JsonObject op) {
+        operations.add(op);
+        return this;
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    JsonArray getOperations() {
+        return operations;
+    }
+
+    // One result per operation, in batch order. Operations the hub didn't
+    // report on count as failed.
+    List<Result> readResults(JsonObject reply) {
+        JsonArray results = reply.has("results") ? reply.getAsJsonArray("results") : new JsonArray();
+        List<Result> opResults = new ArrayList<>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            if (i < results.size()) {
+                JsonObject result = results.get(i).getAsJsonObject();
+                boolean ok = result.has("ok") && result.get("ok").getAsBoolean();
+                String error = result.has("error") ? result.get("error").getAsString() : null;
+                opResults.add(new Result(ok, error));
+            } else {
+                opResults.add(new Result(false, "no_result"));
+            }
+        }
+        return opResults;
+    }
+
+    // Results for operations that were sent one by one, e.g. after being
+    // queued while offline
+    static List<Result> collectResults(List<CompletableFuture<JsonObject>> replies) {
+        List<Result> opResults = new ArrayList<>(replies.size());
+        for (CompletableFuture<JsonObject> reply : replies) {
+            try {
+                reply.join();
+                opResults.add(new Result(true, null));
+            } catch (CompletionException e) {
+                opResults.add(failed(e.getCause()));
+            } catch (CancellationException e) {
+                opResults.add(failed(e));
+            }
+        }
+        return opResults;
+    }
+
+    // The result for an operation whose reply failed with error
+    static Result failed(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof CancellationException) {
+            return new Result(false, "cancelled");
+        }
+        return new Result(false, error instanceof CommandException ? ((CommandException) error).getError() : "failed");
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.homie.services;
+
+// Completes a command future when the hub rejects the command or it could not
+// be delivered. The error is the hub's code, e.g. "unknown_device".
+public class CommandException extends Exception {
+    private final String error;
+
+    public CommandException(String error) {
+        super("Command failed: " + error);
+        this.error = error;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
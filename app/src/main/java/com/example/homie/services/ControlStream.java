@@ -0,0 +1,91 @@
+package com.example.homie.services;
+
+import com.example.homie.model.DeviceControl;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Streams slider positions to the hub while a slider is being dragged. Values
+// are last-value-wins per device and control: anything that arrives between
+// sends replaces the one waiting. Sends happen at most every SEND_INTERVAL_MS
+// across all sliders, so a drag can't flood the softAP link or the ESP32's
+// socket buffer. Streamed values are fire-and-forget; the value on release
+// goes through the acknowledged command path, after discard(), so the hub
+// always ends on it.
+class ControlStream {
+    static final long SEND_INTERVAL_MS = 50; // 20 Hz
+
+    interface Sender {
+        // Runs on the executor. False if the value couldn't be sent; it's
+        // dropped either way, since a newer one or the final one will follow.
+        boolean send(String deviceId, DeviceControl control, int value);
+    }
+
+    private static final class Value {
+        final String deviceId;
+        final DeviceControl control;
+        final int value;
+
+        Value(String deviceId, DeviceControl control, int value) {
+            this.deviceId = deviceId;
+            this.control = control;
+            this.value = value;
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Sender sender;
+
+    // Guarded by this
+    private final Map<String, Value> waiting = new LinkedHashMap<>();
+    private long lastSendAt = 0;
+    private boolean flushScheduled = false;
+
+    ControlStream(ScheduledExecutorService executor, Sender sender) {
+        this.executor = executor;
+        this.sender = sender;
+    }
+
+    void update(String deviceId, DeviceControl control, int value) {
+        long delay;
+        synchronized (this) {
+            waiting.put(key(deviceId, control), new Value(deviceId, control, value));
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            delay = Math.max(0, lastSendAt + SEND_INTERVAL_MS - System.currentTimeMillis());
+        }
+        executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Drops a value still waiting to stream. Called before the final value is
+    // queued on the same executor, so no streamed value can land after it.
+    synchronized void discard(String deviceId, DeviceControl control) {
+        waiting.remove(key(deviceId, control));
+    }
+
+    synchronized void clear() {
+        waiting.clear();
+    }
+
+    private void flush() {
+        List<Value> values;
+        synchronized (this) {
+            values = new ArrayList<>(waiting.values());
+            waiting.clear();
+            flushScheduled = false;
+            lastSendAt = System.currentTimeMillis();
+        }
+        for (Value value : values) {
+            sender.send(value.deviceId, value.control, value.value);
+        }
+    }
+
+    private static String key(String deviceId, DeviceControl control) {
+        return control.getName() + ":" + deviceId;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.homie.services;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Connects to several addresses of one hub at once, in the manner of Happy
+// Eyeballs (RFC 8305). Attempts start in the order given, each
+// ATTEMPT_DELAY_MS after the previous one or as soon as it fails, and the
+// first to open wins; the rest are abandoned. Whichever path is fastest
+// decides the time to connect, instead of the sum of every dead address's
+// timeout before it.
+class EndpointRace<T> {
+    static final long ATTEMPT_DELAY_MS = 250;
+
+    interface Attempts<T> {
+        // Starts connecting. The attempt reports back through onOpened or
+        // onFailed, from any thread.
+        T start(URI endpoint);
+
+        // Called with the race's lock held, before isRunning() turns false,
+        // so whoever sees the race finished also sees the winner. Keep it to
+        // recording the attempt.
+        void onWon(T attempt);
+
+        // Lost the race; close it whatever state it is in
+        void abandon(T attempt);
+
+        // Not called with the race's lock held
+        void onAllFailed();
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Attempts<T> attempts;
+
+    // Guarded by this
+    private final List<T> live = new ArrayList<>();
+    private List<URI> endpoints = new ArrayList<>();
+    private int next = 0;
+    private boolean running = false;
+    private ScheduledFuture<?> nextStart;
+
+    EndpointRace(ScheduledExecutorService executor, Attempts<T> attempts) {
+        this.executor = executor;
+        this.attempts = attempts;
+    }
+
+    synchronized boolean isRunning() {
+        return running;
+    }
+
+    void start(List<URI> candidates) {
+        cancel();
+        synchronized (this) {
+            endpoints = new ArrayList<>(candidates);
+            next = 0;
+            running = !endpoints.isEmpty();
+            if (running) {
+                startNext();
+            }
+        }
+    }
+
+    // True if the attempt won. False if the race was already decided, in
+    // which case the caller closes it.
+    boolean onOpened(T attempt) {
+        List<T> losers;
+        synchronized (this) {
+            if (!running || !live.remove(attempt)) {
+                return false;
+            }
+            attempts.onWon(attempt);
+            losers = stop();
+        }
+        abandonAll(losers);
+        return true;
+    }
+
+    // For an attempt that closed or failed without opening
+    void onFailed(T attempt) {
+        synchronized (this) {
+            if (!running || !live.remove(attempt)) {
+                return;
+            }
+            // No point waiting out the delay once the one ahead has failed
+            if (next < endpoints.size()) {
+                startNext();
+                return;
+            }
+            if (!live.isEmpty()) {
+                return;
+            }
+            stop();
+        }
+        attempts.onAllFailed();
+    }
+
+    void cancel() {
+        List<T> abandoned;
+        synchronized (this) {
+            abandoned = stop();
+        }
+        abandonAll(abandoned);
+    }
+
+    private synchronized void onAttemptDelay() {
+        nextStart = null;
+        if (running && next < endpoints.size()) {
+            startNext();
+        }
+    }
+
+    // Holding the lock
+    private void startNext() {
+        if (nextStart != null) {
+            nextStart.cancel(false);
+            nextStart = null;
+        }
+        live.add(attempts.start(endpoints.get(next++)));
+        if (next < endpoints.size()) {
+            nextStart = executor.schedule(this::onAttemptDelay, ATTEMPT_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Holding the lock. Returns the attempts still in flight, to be
+    // abandoned once it's released: closing one can call back into onFailed.
+    private List<T> stop() {
+        running = false;
+        if (nextStart != null) {
+            nextStart.cancel(false);
+            nextStart = null;
+        }
+        List<T> inFlight = new ArrayList<>(live);
+        live.clear();
+        return inFlight;
+    }
+
+    private void abandonAll(List<T> inFlight) {
+        for (T attempt : inFlight) {
+            attempts.abandon(attempt);
+        }
+    }
+}
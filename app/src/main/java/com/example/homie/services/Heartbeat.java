@@ -0,0 +1,117 @@
+package com.example.homie.services;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Checks that the hub is still answering. Every interval a ping goes out
+// carrying the app's send time, which the hub echoes in its pong, giving
+// the round trip. Any frame from the hub counts as a sign of life; after
+// maxMissed pings in a row without one the link is declared dead. A hub
+// that lost power or a WiFi link that dropped silently is noticed in
+// seconds, where TCP alone can take minutes.
+class Heartbeat {
+    static final long DEFAULT_INTERVAL_MS = 2000;
+    static final int DEFAULT_MAX_MISSED = 3;
+    // Weight of each new sample in the smoothed RTT, as in TCP's SRTT
+    private static final double RTT_GAIN = 0.125;
+
+    interface Listener {
+        // Runs on the executor. sentAt is to be echoed back in the pong.
+        void sendPing(long sentAt);
+
+        void onRoundTrip(long rttMs, long smoothedRttMs);
+
+        // Runs on the executor. The heartbeat has stopped.
+        void onDead(long silentForMs);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Listener listener;
+    // Ping times are relative to this so they stay small and monotonic
+    private final long originNanos = System.nanoTime();
+
+    // Guarded by this
+    private long intervalMs = DEFAULT_INTERVAL_MS;
+    private int maxMissed = DEFAULT_MAX_MISSED;
+    private ScheduledFuture<?> task;
+    private int unanswered = 0;
+    private long lastHeardAt = 0;
+    private double smoothedRtt = -1;
+
+    Heartbeat(ScheduledExecutorService executor, Listener listener) {
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    // The link is declared dead within (maxMissed + 1) * intervalMs of silence
+    synchronized void setWindow(long intervalMs, int maxMissed) {
+        this.intervalMs = intervalMs;
+        this.maxMissed = maxMissed;
+        if (task != null) {
+            start();
+        }
+    }
+
+    // When a connection opens
+    synchronized void start() {
+        stop();
+        unanswered = 0;
+        lastHeardAt = now();
+        smoothedRtt = -1;
+        task = executor.scheduleAtFixedRate(this::tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    // Any frame from the hub
+    synchronized void onTraffic() {
+        unanswered = 0;
+        lastHeardAt = now();
+    }
+
+    void onPong(long sentAt) {
+        long rtt;
+        long smoothed;
+        synchronized (this) {
+            onTraffic();
+            rtt = now() - sentAt;
+            if (task == null || rtt < 0) {
+                return;
+            }
+            smoothedRtt = smoothedRtt < 0 ? rtt : smoothedRtt + RTT_GAIN * (rtt - smoothedRtt);
+            smoothed = Math.round(smoothedRtt);
+        }
+        listener.onRoundTrip(rtt, smoothed);
+    }
+
+    private void tick() {
+        long silentFor;
+        synchronized (this) {
+            if (task == null) {
+                return;
+            }
+            if (unanswered < maxMissed) {
+                unanswered++;
+                silentFor = -1;
+            } else {
+                silentFor = now() - lastHeardAt;
+                stop();
+            }
+        }
+        if (silentFor >= 0) {
+            listener.onDead(silentFor);
+        } else {
+            listener.sendPing(now());
+        }
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - originNanos);
+    }
+}
@@ -0,0 +1,925 @@
+package com.example.homie.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import com.example.homie.model.Device;
+import com.example.homie.model.DeviceControl;
+import com.example.homie.repository.HomeStateStore;
+import com.example.homie.repository.HubVersion;
+import com.example.homie.utils.GsonProvider;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ServerHandshake;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+// The socket to one hub, with everything that belongs to it: the command
+// sequence and outbound queue, reconnect backoff, heartbeat, slider stream
+// and the binary device indices. Each hub has its own executor, so hubs
+// connect, replay and send in parallel and a slow one holds up nobody else.
+//
+// Hubs number their devices independently, so device ids are namespaced:
+// the primary hub's devices keep their bare ids, which is what installs with
+// a single hub already have stored, and every other hub's ids are prefixed
+// with "<hubId>/". The hub-local id is kept as the device's esp32DeviceId
+// and is what goes on the wire.
+//
+// A hub can have several addresses: its own access point, its address on
+// the home network, and whatever the user configured. All of them are
+// raced on every connect (see EndpointRace), the one that won last time
+// first.
+class HubConnection {
+    private static final String TAG = "HubConnection";
+    private static final String PREFS_NAME = "homie_endpoints";
+    private static final String KEY_LAST_GOOD = "_last_good";
+    private static final String KEY_LAN = "_lan";
+    // A losing address that never answers shouldn't hold a thread for the
+    // OS's TCP timeout
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    static final String PRIMARY_HUB_ID = "main";
+    static final char ID_SEPARATOR = '/';
+
+    static final int STATUS_ERROR = -1;
+    static final int STATUS_DISCONNECTED = 0;
+    static final int STATUS_CONNECTED = 2;
+
+    interface Listener {
+        // Any thread
+        void onStatusChanged(HubConnection hub);
+    }
+
+    private final String hubId;
+    private final List<URI> endpoints;
+    private final SharedPreferences endpointPrefs;
+    private final String idPrefix;
+    private final HomeStateStore homeState;
+    private final SensorHistory sensorHistory;
+    private final Listener listener;
+    private final TypeAdapter<Device> deviceAdapter = GsonProvider.get().getAdapter(Device.class);
+    // The devices this hub answers for
+    private final HomeStateStore.Filter ownDevices = device -> device.isESP32Controlled() && owns(device.getId());
+
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+    private volatile WebSocketClient webSocketClient;
+    private volatile int status = STATUS_DISCONNECTED;
+    private volatile boolean shutDown = false;
+    private volatile long roundTripTime = -1;
+    // From sending get_initial_data until its dump or delta is applied
+    private volatile boolean syncing = false;
+
+    // Binary framing is only used after the hub acknowledges it in hello_ack.
+    // Frames address devices by their position in the last initial_devices dump.
+    private volatile boolean binaryFraming = false;
+    private volatile String[] deviceIdsByIndex = new String[0];
+    private volatile Map<String, Integer> deviceIndexById = Collections.emptyMap();
+
+    private final PendingCommands pendingCommands = new PendingCommands();
+    private final OutboundQueue outboundQueue;
+    private final EndpointRace<HubSocket> race = new EndpointRace<>(executorService,
+            new EndpointRace.Attempts<HubSocket>() {
+                @Override
+                public HubSocket start(URI endpoint) {
+                    HubSocket socket = new HubSocket(endpoint);
+                    socket.connect();
+                    return socket;
+                }
+
+                @Override
+                public void onWon(HubSocket attempt) {
+                    webSocketClient = attempt;
+                }
+
+                @Override
+                public void abandon(HubSocket attempt) {
+                    attempt.close();
+                }
+
+                @Override
+                public void onAllFailed() {
+                    Log.w(TAG, "No address of hub " + hubId + " answered");
+                    onLinkDown(STATUS_ERROR);
+                }
+            });
+    private final ReconnectScheduler reconnectScheduler = new ReconnectScheduler(executorService, this::connect);
+    private final ControlStream controlStream = new ControlStream(executorService, this::sendStreamedLevel);
+    private final Heartbeat heartbeat = new Heartbeat(executorService, new Heartbeat.Listener() {
+        @Override
+        public void sendPing(long sentAt) {
+            JsonObject payload = new JsonObject();
+            payload.addProperty("t", sentAt);
+            sendCommand("ping", payload);
+        }
+
+        @Override
+        public void onRoundTrip(long rttMs, long smoothedRttMs) {
+            roundTripTime = smoothedRttMs;
+            listener.onStatusChanged(HubConnection.this);
+        }
+
+        @Override
+        public void onDead(long silentForMs) {
+            Log.w(TAG, "No frames from hub " + hubId + " for " + silentForMs + " ms, dropping connection");
+            WebSocketClient client = webSocketClient;
+            if (client != null) {
+                // Skips the close handshake, which would wait on the dead link
+                client.closeConnection(CloseFrame.ABNORMAL_CLOSE, "heartbeat_timeout");
+            }
+        }
+    });
+    private final BinaryProtocol.FrameHandler binaryFrameHandler = new BinaryProtocol.FrameHandler() {
+        @Override
+        public void onDeviceState(int index, boolean active) {
+            String id = deviceIdForIndex(index);
+            if (id != null) {
+                applyDeviceState(id, active);
+            }
+        }
+
+        @Override
+        public void onTemperature(int index, float celsius) {
+            String id = deviceIdForIndex(index);
+            if (id != null) {
+                applyTemperature(id, celsius);
+            }
+        }
+
+        @Override
+        public void onDeviceLevel(int index, int control, int value) {
+            String id = deviceIdForIndex(index);
+            DeviceControl deviceControl = DeviceControl.fromCode(control);
+            if (id != null && deviceControl != null) {
+                applyLevel(id, deviceControl, value);
+            }
+        }
+    };
+
+    HubConnection(Context context, String hubId, List<URI> endpoints, HomeStateStore homeState,
+            SensorHistory sensorHistory, Listener listener) {
+        this.hubId = hubId;
+        this.endpoints = new ArrayList<>(endpoints);
+        this.endpointPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.idPrefix = isPrimary(hubId) ? "" : hubId + ID_SEPARATOR;
+        this.homeState = homeState;
+        this.sensorHistory = sensorHistory;
+        this.listener = listener;
+        this.outboundQueue = new OutboundQueue(context, isPrimary(hubId) ? "" : "_" + hubId);
+    }
+
+    static boolean isPrimary(String hubId) {
+        return PRIMARY_HUB_ID.equals(hubId);
+    }
+
+    // The hub an app device id belongs to
+    static String hubIdOf(String deviceId) {
+        int separator = deviceId.indexOf(ID_SEPARATOR);
+        return separator > 0 ? deviceId.substring(0, separator) : PRIMARY_HUB_ID;
+    }
+
+    String getHubId() {
+        return hubId;
+    }
+
+    // As configured; learned addresses aren't included
+    List<URI> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    boolean isSyncing() {
+        return syncing;
+    }
+
+    boolean isOpen() {
+        WebSocketClient client = webSocketClient;
+        return client != null && client.isOpen();
+    }
+
+    // Smoothed, or -1 while disconnected or before the first pong
+    long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    boolean owns(String deviceId) {
+        return hubIdOf(deviceId).equals(hubId);
+    }
+
+    private String appId(String localId) {
+        return idPrefix + localId;
+    }
+
+    private String localId(String appId) {
+        return appId.substring(idPrefix.length());
+    }
+
+    void connect() {
+        executorService.execute(() -> {
+            // Racing, or still open or mid-handshake, nothing to do. The race is
+            // checked first: a race that just finished has already set its
+            // winner as webSocketClient.
+            if (race.isRunning() || (webSocketClient != null && !webSocketClient.isClosed())) {
+                return;
+            }
+            try {
+                race.start(candidateEndpoints());
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to create WebSocket client for hub " + hubId, e);
+                race.cancel();
+                setStatus(STATUS_ERROR);
+                reconnectScheduler.scheduleRetry();
+            }
+        });
+    }
+
+    // The address that worked last, then the configured ones, then the
+    // home network address the hub last reported
+    private List<URI> candidateEndpoints() {
+        Set<URI> candidates = new LinkedHashSet<>();
+        URI lastGood = storedEndpoint(KEY_LAST_GOOD);
+        if (lastGood != null) {
+            candidates.add(lastGood);
+        }
+        candidates.addAll(endpoints);
+        URI lan = storedEndpoint(KEY_LAN);
+        if (lan != null) {
+            candidates.add(lan);
+        }
+        return new ArrayList<>(candidates);
+    }
+
+    private URI storedEndpoint(String key) {
+        String endpoint = endpointPrefs.getString(hubId + key, null);
+        if (endpoint == null) {
+            return null;
+        }
+        try {
+            return URI.create(endpoint);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void storeEndpoint(String key, URI endpoint) {
+        if (!endpoint.equals(storedEndpoint(key))) {
+            endpointPrefs.edit().putString(hubId + key, endpoint.toString()).apply();
+        }
+    }
+
+    // One attempt in the race. Only the winner becomes webSocketClient; the
+    // others are closed, and anything they receive meanwhile is ignored.
+    private class HubSocket extends WebSocketClient {
+        private final URI endpoint;
+
+        HubSocket(URI endpoint) {
+            super(endpoint, new Draft_6455(), null, CONNECT_TIMEOUT_MS);
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshakedata) {
+            // A win makes this webSocketClient
+            if (!race.onOpened(this)) {
+                close();
+                return;
+            }
+            Log.d(TAG, "Hub " + hubId + " opened at " + endpoint + ": " + handshakedata.getHttpStatusMessage());
+            storeEndpoint(KEY_LAST_GOOD, endpoint);
+            binaryFraming = false;
+            reconnectScheduler.reset();
+            heartbeat.start();
+            setStatus(STATUS_CONNECTED);
+            executorService.execute(() -> {
+                offerBinaryFraming();
+                replayQueuedCommands();
+                requestInitialData();
+            });
+        }
+
+        @Override
+        public void onMessage(String message) {
+            if (this != webSocketClient || shutDown) {
+                return;
+            }
+            heartbeat.onTraffic();
+            try {
+                handleWebSocketMessage(message);
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing WebSocket message", e);
+            }
+        }
+
+        @Override
+        public void onMessage(ByteBuffer bytes) {
+            if (this != webSocketClient || shutDown) {
+                return;
+            }
+            heartbeat.onTraffic();
+            try {
+                handleBinaryMessage(bytes);
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing binary WebSocket message", e);
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            if (this != webSocketClient) {
+                race.onFailed(this);
+                return;
+            }
+            Log.d(TAG, "Hub " + hubId + " closed: " + reason + " (code: " + code + "), remote: " + remote);
+            onLinkDown(STATUS_DISCONNECTED);
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            if (this != webSocketClient) {
+                Log.d(TAG, "Hub " + hubId + " not reachable at " + endpoint + ": " + ex.getMessage());
+                return;
+            }
+            Log.e(TAG, "Hub " + hubId + " error", ex);
+            setStatus(STATUS_ERROR);
+        }
+    }
+
+    private void onLinkDown(int newStatus) {
+        binaryFraming = false;
+        heartbeat.stop();
+        roundTripTime = -1;
+        syncing = false;
+        pendingCommands.failAll(new CommandException("disconnected"));
+        // A hub re-added with new addresses has a new connection serving the
+        // same devices; the old socket closing must leave them alone
+        if (shutDown) {
+            return;
+        }
+        // Nothing this hub controls is reachable until it reconnects
+        homeState.markHubDevicesOffline(ownDevices);
+        setStatus(newStatus);
+        reconnectScheduler.scheduleRetry();
+    }
+
+    private void setStatus(int newStatus) {
+        status = newStatus;
+        listener.onStatusChanged(this);
+    }
+
+    private void setSyncing(boolean nowSyncing) {
+        if (syncing != nowSyncing) {
+            syncing = nowSyncing;
+            listener.onStatusChanged(this);
+        }
+    }
+
+    // Called when the hub's network appears; reconnects at once instead of
+    // waiting out the current backoff. A race still running started on the
+    // old network, so it starts over.
+    void onNetworkAvailable() {
+        if (!isOpen()) {
+            race.cancel();
+            reconnectScheduler.onNetworkAvailable();
+        }
+    }
+
+    // Called when the hub's network goes away; no retries until it is back
+    void onNetworkLost() {
+        reconnectScheduler.onNetworkLost();
+    }
+
+    void setHeartbeat(long intervalMs, int maxMissed) {
+        heartbeat.setWindow(intervalMs, maxMissed);
+    }
+
+    // Asks for what changed since the hub version the store holds. The hub
+    // answers with a device_delta, or with a full initial_devices dump when
+    // it can't (it rebooted since, or the store has no version yet). Hubs
+    // without versions ignore the fields and always dump.
+    void requestInitialData() {
+        HubVersion since = homeState.getHubVersion(hubId);
+        if (since == null || since.getVersion() == 0) {
+            requestFullSnapshot();
+            return;
+        }
+        JsonObject payload = new JsonObject();
+        payload.addProperty("epoch", since.getEpoch());
+        payload.addProperty("since", since.getVersion());
+        if (sendCommand("get_initial_data", payload)) {
+            setSyncing(true);
+        }
+    }
+
+    private void requestFullSnapshot() {
+        if (sendCommand("get_initial_data", null)) {
+            setSyncing(true);
+        }
+    }
+
+    // Hubs that don't know "hello" ignore it and we stay on JSON text frames
+    private void offerBinaryFraming() {
+        JsonObject payload = new JsonObject();
+        JsonArray protocols = new JsonArray();
+        protocols.add(BinaryProtocol.PROTOCOL_NAME);
+        protocols.add("json");
+        payload.add("protocols", protocols);
+        sendCommand("hello", payload);
+    }
+
+    // The returned future completes with the hub's reply once the device has
+    // switched, or fails on rejection, disconnect or timeout. Cancelling it
+    // only stops waiting; the command has already been sent.
+    CompletableFuture<JsonObject> toggleDevice(String deviceId, boolean state) {
+        int seq = pendingCommands.nextSeq();
+        CompletableFuture<JsonObject> reply = pendingCommands.track(seq, deviceId, state,
+                PendingCommands.DEFAULT_TIMEOUT_MS);
+
+        JsonObject payload = new JsonObject();
+        payload.addProperty("device_id", localId(deviceId));
+        payload.addProperty("state", state);
+
+        // Always JSON, even on bin1: the binary toggle frame has no seq, so
+        // a hub that switched without broadcasting would never ack it
+        return queueUnlessSent(sendCommand("toggle_device", payload, seq), seq, reply, "toggle_device", payload);
+    }
+
+    // Sends all operations in one frame and completes with one result per
+    // operation. The batch must already use this hub's local device ids.
+    CompletableFuture<List<CommandBatch.Result>> sendBatch(CommandBatch batch) {
+        if (batch.size() == 0) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        int seq = pendingCommands.nextSeq();
+        CompletableFuture<JsonObject> reply = pendingCommands.track(seq, PendingCommands.DEFAULT_TIMEOUT_MS);
+        JsonObject payload = new JsonObject();
+        payload.add("ops", batch.getOperations());
+        if (!sendCommand("batch", payload, seq)) {
+            pendingCommands.fail(seq, new CommandException("not_connected"));
+            return queueBatch(batch);
+        }
+        for (JsonElement op : batch.getOperations()) {
+            JsonObject operation = op.getAsJsonObject();
+            outboundQueue.supersede(OutboundQueue.keyFor(operation.get("op").getAsString(),
+                    operation.get("device_id").getAsString()), reply);
+        }
+
+        CompletableFuture<List<CommandBatch.Result>> results = reply.thenApply(batch::readResults);
+        // Let cancel() on the result stop tracking the underlying command too
+        results.whenComplete((r, error) -> reply.cancel(false));
+        return results;
+    }
+
+    // Operation with its app device id swapped for this hub's local one
+    JsonObject toLocal(JsonObject operation) {
+        JsonObject local = operation.deepCopy();
+        local.addProperty("device_id", localId(operation.get("device_id").getAsString()));
+        return local;
+    }
+
+    CompletableFuture<JsonObject> updateDevice(Device device) {
+        int seq = pendingCommands.nextSeq();
+        CompletableFuture<JsonObject> reply = pendingCommands.track(seq, PendingCommands.DEFAULT_TIMEOUT_MS);
+        JsonObject payload = new JsonObject();
+        payload.addProperty("device_id", localId(device.getId()));
+        payload.addProperty("name", device.getName());
+        payload.addProperty("type", device.getType());
+        payload.addProperty("room", device.getRoom());
+        return queueUnlessSent(sendCommand("update_device", payload, seq), seq, reply, "update_device", payload);
+    }
+
+    // For slider drags: coalesced to the latest value and sent at most
+    // ControlStream.SEND_INTERVAL_MS apart, without acks
+    void streamLevel(String deviceId, DeviceControl control, int value) {
+        controlStream.update(deviceId, control, value);
+    }
+
+    // The value a slider was released on. Acknowledged, queued while offline,
+    // persisted by the hub, and sent after any streamed value for the same
+    // slider.
+    CompletableFuture<JsonObject> setLevel(String deviceId, DeviceControl control, int value) {
+        controlStream.discard(deviceId, control);
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        executorService.execute(() -> {
+            int seq = pendingCommands.nextSeq();
+            CompletableFuture<JsonObject> reply = pendingCommands.track(seq, PendingCommands.DEFAULT_TIMEOUT_MS);
+            JsonObject payload = new JsonObject();
+            payload.addProperty("device_id", localId(deviceId));
+            payload.addProperty("value", value);
+            payload.addProperty("final", true);
+            OutboundQueue.forward(queueUnlessSent(sendCommand(control.getCommand(), payload, seq), seq, reply,
+                    control.getCommand(), payload), result);
+        });
+        return result;
+    }
+
+    // On executorService, from ControlStream
+    private boolean sendStreamedLevel(String deviceId, DeviceControl control, int value) {
+        Integer index = deviceIndexById.get(deviceId);
+        if (binaryFraming && index != null) {
+            return sendBinary(BinaryProtocol.encodeSetLevel(index, control.getCode(), value));
+        }
+        JsonObject payload = new JsonObject();
+        payload.addProperty("device_id", localId(deviceId));
+        payload.addProperty("value", value);
+        return sendCommand(control.getCommand(), payload);
+    }
+
+    // Device commands that couldn't go out are queued for the next connection
+    // instead of failing. One that did go out replaces any queued older one.
+    private CompletableFuture<JsonObject> queueUnlessSent(boolean sent, int seq, CompletableFuture<JsonObject> reply,
+            String type, JsonObject payload) {
+        String key = OutboundQueue.keyFor(type, payload.get("device_id").getAsString());
+        if (!sent) {
+            pendingCommands.fail(seq, new CommandException("not_connected"));
+            return outboundQueue.enqueue(key, type, payload);
+        }
+        outboundQueue.supersede(key, reply);
+        return reply;
+    }
+
+    // Offline batches are queued per operation so each one collapses with
+    // later commands for the same device
+    private CompletableFuture<List<CommandBatch.Result>> queueBatch(CommandBatch batch) {
+        List<CompletableFuture<JsonObject>> replies = new ArrayList<>(batch.size());
+        for (JsonElement op : batch.getOperations()) {
+            JsonObject data = op.getAsJsonObject().deepCopy();
+            String type = data.remove("op").getAsString();
+            String key = OutboundQueue.keyFor(type, data.get("device_id").getAsString());
+            replies.add(outboundQueue.enqueue(key, type, data));
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture[0]))
+                .handle((ignored, error) -> CommandBatch.collectResults(replies));
+    }
+
+    // Runs right after the socket opens and before get_initial_data, so the
+    // dump the hub sends back already reflects the replayed commands
+    private void replayQueuedCommands() {
+        OutboundQueue.Command command;
+        while ((command = outboundQueue.peek()) != null) {
+            int seq = pendingCommands.nextSeq();
+            CompletableFuture<JsonObject> reply = pendingCommands.track(seq, PendingCommands.DEFAULT_TIMEOUT_MS);
+            if (!sendCommand(command.type, command.data, seq)) {
+                pendingCommands.fail(seq, new CommandException("not_connected"));
+                return;
+            }
+            outboundQueue.remove(command);
+            OutboundQueue.forward(reply, command.reply);
+        }
+    }
+
+    private boolean sendCommand(String type, JsonObject data) {
+        return sendCommand(type, data, 0);
+    }
+
+    // A non-zero seq is echoed back by the hub in its reply to this command
+    private boolean sendCommand(String type, JsonObject data, int seq) {
+        WebSocketClient client = webSocketClient;
+        if (client != null && client.isOpen()) {
+            try {
+                JsonObject message = new JsonObject();
+                message.addProperty("type", type);
+                if (seq != 0) {
+                    message.addProperty("seq", seq);
+                }
+                if (data != null) {
+                    // Use a fixed "data" field for consistency with parsing
+                    message.add("data", data);
+                }
+                client.send(message.toString());
+                // Pings go out every few seconds per hub and would drown the rest
+                if (!"ping".equals(type) && Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "Sent to hub " + hubId + ": " + message);
+                }
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to send WebSocket message", e);
+            }
+        } else {
+            Log.w(TAG, "Hub " + hubId + " not open. Cannot send: " + type);
+        }
+        return false;
+    }
+
+    private boolean sendBinary(ByteBuffer frame) {
+        WebSocketClient client = webSocketClient;
+        if (client != null && client.isOpen()) {
+            try {
+                client.send(frame);
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to send binary WebSocket frame", e);
+            }
+        } else {
+            Log.w(TAG, "Hub " + hubId + " not open. Cannot send binary frame");
+        }
+        return false;
+    }
+
+    private void handleBinaryMessage(ByteBuffer frame) {
+        if (!frame.hasRemaining())
+            return;
+        if (!BinaryProtocol.decode(frame, binaryFrameHandler)) {
+            Log.d(TAG, "Unknown binary frame tag: " + frame.get(0));
+        }
+    }
+
+    private String deviceIdForIndex(int index) {
+        String[] ids = deviceIdsByIndex;
+        return index >= 0 && index < ids.length ? ids[index] : null;
+    }
+
+    // Top-level fields are read one at a time. Small fields become a regular
+    // JsonObject, but a "devices" array is streamed device by device so large
+    // dumps never exist as a full tree and the list fills while parsing.
+    private void handleWebSocketMessage(String message) {
+        try (JsonReader reader = new JsonReader(new StringReader(message))) {
+            JsonObject obj = new JsonObject();
+            String type = null;
+            List<Device> bufferedDevices = null;
+            Set<String> streamedIds = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("type".equals(name) && reader.peek() == JsonToken.STRING) {
+                    type = reader.nextString();
+                    obj.addProperty("type", type);
+                } else if ("devices".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    if ("initial_devices".equals(type) || "device_delta".equals(type)) {
+                        streamedIds = streamInitialDevices(reader);
+                    } else {
+                        // Type not seen yet, keep the devices until we know what they are
+                        bufferedDevices = readDevices(reader);
+                    }
+                } else {
+                    obj.add(name, JsonParser.parseReader(reader));
+                }
+            }
+            reader.endObject();
+
+            if (type == null)
+                return;
+            switch (type) {
+                case "initial_devices":
+                    finishInitialDevices(streamedIds != null ? streamedIds : applyDevices(bufferedDevices));
+                    recordHubVersion(obj);
+                    setSyncing(false);
+                    break;
+                case "device_delta":
+                    // A rejected delta has asked for a full dump; still syncing
+                    if (finishDelta(obj.getAsJsonArray("ids"),
+                            streamedIds != null ? streamedIds : applyDevices(bufferedDevices))) {
+                        recordHubVersion(obj);
+                        setSyncing(false);
+                    }
+                    break;
+                case "device_state":
+                    handleDeviceState(obj);
+                    if (obj.has("seq"))
+                        handleReply(obj);
+                    break;
+                case "temperature":
+                    handleTemperature(obj);
+                    break;
+                case "device_level":
+                    handleDeviceLevel(obj);
+                    break;
+                case "hello_ack":
+                    handleHelloAck(obj);
+                    break;
+                case "ack":
+                case "batch_result":
+                    handleReply(obj);
+                    break;
+                case "pong":
+                    heartbeat.onPong(obj.get("t").getAsLong());
+                    break;
+                case "heartbeat":
+                    break;
+                case "performance":
+                    Log.d(TAG, "Performance update from hub " + hubId + ": " + obj);
+                    break;
+                default:
+                    Log.d(TAG, "Unknown message type: " + type);
+                    break;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error parsing WebSocket message: " + message, e);
+        }
+    }
+
+    private void handleHelloAck(JsonObject obj) {
+        String protocol = obj.has("protocol") ? obj.get("protocol").getAsString() : "json";
+        binaryFraming = BinaryProtocol.PROTOCOL_NAME.equals(protocol);
+        Log.d(TAG, "Hub " + hubId + " selected protocol: " + protocol);
+        // Raced from now on, so the app can move between the hub's access
+        // point and the home network without reconfiguring
+        if (obj.has("lan")) {
+            try {
+                storeEndpoint(KEY_LAN, URI.create(obj.get("lan").getAsString()));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring bad LAN address from hub " + hubId);
+            }
+        }
+    }
+
+    private void handleReply(JsonObject obj) {
+        try {
+            pendingCommands.complete(obj.get("seq").getAsInt(), obj);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to handle command reply", e);
+        }
+    }
+
+    private Set<String> streamInitialDevices(JsonReader reader) throws IOException {
+        Set<String> seenIds = new LinkedHashSet<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Device device = readDevice(reader);
+            if (device != null) {
+                applyInitialDevice(device, seenIds);
+            }
+        }
+        reader.endArray();
+        return seenIds;
+    }
+
+    // Anything in the hub's dump is controlled by it and currently reachable
+    private void applyInitialDevice(Device device, Set<String> seenIds) {
+        String localId = device.getId();
+        device.setId(appId(localId));
+        device.setESP32Controlled(true);
+        device.setEsp32DeviceId(localId);
+        device.setOnline(true);
+        homeState.put(device);
+        seenIds.add(device.getId());
+    }
+
+    private Set<String> applyDevices(List<Device> devices) {
+        Set<String> seenIds = new LinkedHashSet<>();
+        if (devices != null) {
+            for (Device device : devices) {
+                applyInitialDevice(device, seenIds);
+            }
+        }
+        return seenIds;
+    }
+
+    // The dump is this hub's full device list in hub order, so anything of
+    // its own it didn't mention is gone and the order defines the binary
+    // device indices
+    private void finishInitialDevices(Set<String> seenIds) {
+        for (String removedId : homeState.retainAll(seenIds, ownDevices)) {
+            sensorHistory.forget(removedId);
+        }
+        setDeviceOrder(seenIds);
+    }
+
+    // A delta carries only the changed devices, plus every id in hub order.
+    // Unchanged devices keep their stored state but are reachable again. If
+    // the hub lists a device the store doesn't have, the stored state can't
+    // be trusted and a full dump is requested instead; returns false then.
+    private boolean finishDelta(JsonArray hubIds, Set<String> changedIds) {
+        Set<String> allIds = new LinkedHashSet<>();
+        for (JsonElement id : hubIds) {
+            allIds.add(appId(id.getAsString()));
+        }
+        for (String id : allIds) {
+            if (changedIds.contains(id)) {
+                continue;
+            }
+            if (homeState.update(id, device -> device.setOnline(true)) == null) {
+                Log.w(TAG, "Delta names unknown device " + id + ", requesting full dump");
+                requestFullSnapshot();
+                return false;
+            }
+        }
+        finishInitialDevices(allIds);
+        Log.d(TAG, "Applied delta from hub " + hubId + ": " + changedIds.size() + " of " + allIds.size()
+                + " devices changed");
+        return true;
+    }
+
+    private void recordHubVersion(JsonObject obj) {
+        if (obj.has("epoch") && obj.has("version")) {
+            homeState.setHubVersion(hubId,
+                    new HubVersion(obj.get("epoch").getAsLong(), obj.get("version").getAsLong()));
+        }
+    }
+
+    private void setDeviceOrder(Set<String> seenIds) {
+        String[] ids = seenIds.toArray(new String[0]);
+        Map<String, Integer> indices = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            indices.put(ids[i], i);
+        }
+        deviceIndexById = indices;
+        deviceIdsByIndex = ids;
+    }
+
+    private List<Device> readDevices(JsonReader reader) throws IOException {
+        List<Device> devices = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Device device = readDevice(reader);
+            if (device != null) {
+                devices.add(device);
+            }
+        }
+        reader.endArray();
+        return devices;
+    }
+
+    // Hub device objects use the stored Device field names, so the shared
+    // adapter reads them straight off the stream
+    private Device readDevice(JsonReader reader) throws IOException {
+        return deviceAdapter.read(reader);
+    }
+
+    private void handleDeviceState(JsonObject obj) {
+        try {
+            String id = appId(obj.get("id").getAsString());
+            boolean state = obj.get("isActive").getAsBoolean();
+            applyDeviceState(id, state);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to handle device state update", e);
+        }
+    }
+
+    private void handleTemperature(JsonObject obj) {
+        try {
+            String id = appId(obj.get("id").getAsString());
+            float temp = obj.get("temperature").getAsFloat();
+            applyTemperature(id, temp);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to handle temperature update", e);
+        }
+    }
+
+    private void handleDeviceLevel(JsonObject obj) {
+        try {
+            DeviceControl control = DeviceControl.fromName(obj.get("control").getAsString());
+            if (control != null) {
+                applyLevel(appId(obj.get("id").getAsString()), control, obj.get("value").getAsInt());
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to handle device level update", e);
+        }
+    }
+
+    private void applyLevel(String id, DeviceControl control, int value) {
+        homeState.update(id, device -> control.set(device, value));
+    }
+
+    private void applyDeviceState(String id, boolean state) {
+        pendingCommands.onDeviceState(id, state);
+        homeState.update(id, device -> {
+            device.setActive(state);
+            device.markESP32Synced();
+            device.setLastUpdate(System.currentTimeMillis());
+        });
+    }
+
+    private void applyTemperature(String id, float temp) {
+        sensorHistory.record(id, System.currentTimeMillis(), temp);
+        homeState.updateTemperature(id, temp);
+    }
+
+    // Stops for good: closes the socket, fails whatever is waiting and
+    // releases the executor
+    void shutdown() {
+        shutDown = true;
+        reconnectScheduler.cancel();
+        heartbeat.stop();
+        controlStream.clear();
+        race.cancel();
+        WebSocketClient client = webSocketClient;
+        if (client != null) {
+            client.close();
+        }
+        executorService.shutdownNow();
+        pendingCommands.shutdown(new CommandException("service_destroyed"));
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.homie.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// Commands issued while the hub is unreachable, replayed in order once the
+// socket reopens. Only the newest command per device and command type is
+// kept, so ten toggles of one lamp replay as one. The queue survives process
+// death in SharedPreferences; the futures don't, so commands restored from
+// disk replay without anyone waiting on them.
+class OutboundQueue {
+    private static final String TAG = "OutboundQueue";
+    private static final String PREFS_NAME = "homie_outbound_queue";
+    private static final String KEY_COMMANDS = "commands";
+
+    static final int MAX_COMMANDS = 50;
+    // Older commands are dropped rather than replayed into a changed house
+    static final long MAX_AGE_MS = 5 * 60 * 1000;
+
+    static final class Command {
+        final String key;
+        final String type;
+        final JsonObject data;
+        final long queuedAt;
+        final CompletableFuture<JsonObject> reply = new CompletableFuture<>();
+
+        Command(String key, String type, JsonObject data, long queuedAt) {
+            this.key = key;
+            this.type = type;
+            this.data = data;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final Map<String, Command> commands = new LinkedHashMap<>();
+
+    // One queue per hub; the suffix keeps their stored commands apart
+    OutboundQueue(Context context, String nameSuffix) {
+        prefs = context.getSharedPreferences(PREFS_NAME + nameSuffix, Context.MODE_PRIVATE);
+        load();
+    }
+
+    // The command type names the property being set, e.g. toggle_device is
+    // the on/off state, so one key per device and type collapses correctly
+    static String keyFor(String type, String deviceId) {
+        return type + ":" + deviceId;
+    }
+
+    // Queues a command, replacing any older one with the same key. Whoever
+    // waited on the replaced command gets the new command's outcome.
+    CompletableFuture<JsonObject> enqueue(String key, String type, JsonObject data) {
+        Command command = new Command(key, type, data, System.currentTimeMillis());
+        Command superseded;
+        Command evicted = null;
+        synchronized (this) {
+            superseded = commands.remove(key);
+            commands.put(key, command);
+            if (commands.size() > MAX_COMMANDS) {
+                Iterator<Command> it = commands.values().iterator();
+                evicted = it.next();
+                it.remove();
+            }
+            persist();
+        }
+        Log.d(TAG, "Queued " + key + " (" + size() + " waiting)");
+        if (superseded != null) {
+            forward(command.reply, superseded.reply);
+        }
+        if (evicted != null) {
+            evicted.reply.completeExceptionally(new CommandException("queue_full"));
+        }
+        return command.reply;
+    }
+
+    // A command that was sent directly makes the queued one for the same key stale
+    void supersede(String key, CompletableFuture<JsonObject> replacement) {
+        Command superseded;
+        synchronized (this) {
+            superseded = commands.remove(key);
+            if (superseded != null) {
+                persist();
+            }
+        }
+        if (superseded != null) {
+            forward(replacement, superseded.reply);
+        }
+    }
+
+    // Oldest command still worth sending, or null. Expired commands are
+    // dropped on the way.
+    Command peek() {
+        List<Command> expired = new ArrayList<>();
+        Command next = null;
+        synchronized (this) {
+            long cutoff = System.currentTimeMillis() - MAX_AGE_MS;
+            Iterator<Command> it = commands.values().iterator();
+            while (it.hasNext()) {
+                Command command = it.next();
+                if (command.queuedAt >= cutoff) {
+                    next = command;
+                    break;
+                }
+                it.remove();
+                expired.add(command);
+            }
+            if (!expired.isEmpty()) {
+                persist();
+            }
+        }
+        for (Command command : expired) {
+            command.reply.completeExceptionally(new CommandException("expired"));
+        }
+        return next;
+    }
+
+    // Called once the command is on the wire. A newer command with the same
+    // key stays queued.
+    synchronized void remove(Command command) {
+        if (commands.get(command.key) == command) {
+            commands.remove(command.key);
+            persist();
+        }
+    }
+
+    synchronized int size() {
+        return commands.size();
+    }
+
+    static void forward(CompletableFuture<JsonObject> from, CompletableFuture<JsonObject> to) {
+        from.whenComplete((reply, error) -> {
+            if (error != null) {
+                to.completeExceptionally(error);
+            } else {
+                to.complete(reply);
+            }
+        });
+    }
+
+    private void persist() {
+        JsonArray array = new JsonArray();
+        for (Command command : commands.values()) {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("key", command.key);
+            entry.addProperty("type", command.type);
+            entry.add("data", command.data);
+            entry.addProperty("queuedAt", command.queuedAt);
+            array.add(entry);
+        }
+        prefs.edit().putString(KEY_COMMANDS, array.toString()).apply();
+    }
+
+    private void load() {
+        String json = prefs.getString(KEY_COMMANDS, null);
+        if (json == null) {
+            return;
+        }
+        try {
+            for (JsonElement element : JsonParser.parseString(json).getAsJsonArray()) {
+                JsonObject entry = element.getAsJsonObject();
+                Command command = new Command(entry.get("key").getAsString(), entry.get("type").getAsString(),
+                        entry.getAsJsonObject("data"), entry.get("queuedAt").getAsLong());
+                commands.put(command.key, command);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Discarding unreadable command queue", e);
+            commands.clear();
+            prefs.edit().remove(KEY_COMMANDS).apply();
+        }
+    }
+}
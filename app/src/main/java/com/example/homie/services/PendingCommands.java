@@ -0,0 +1,110 @@
+package com.example.homie.services;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Commands sent with a sequence id, waiting for the hub to answer. A command
+// completes on the reply carrying its seq, or, for device toggles, on the first
+// device_state showing the requested state. The latter also covers binary
+// frames and hubs that don't send acks. Futures time out on their own and drop
+// out of the table however they complete, including cancel().
+class PendingCommands {
+    static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private static final class Expectation {
+        final int seq;
+        final boolean state;
+
+        Expectation(int seq, boolean state) {
+            this.seq = seq;
+            this.state = state;
+        }
+    }
+
+    private final AtomicInteger nextSeq = new AtomicInteger(1);
+    private final Map<Integer, CompletableFuture<JsonObject>> bySeq = new ConcurrentHashMap<>();
+    private final Map<String, Expectation> byDevice = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    int nextSeq() {
+        return nextSeq.getAndIncrement();
+    }
+
+    CompletableFuture<JsonObject> track(int seq, long timeoutMs) {
+        return track(seq, null, false, timeoutMs);
+    }
+
+    // With a deviceId, a device_state for that device with expectedState also
+    // completes the command
+    CompletableFuture<JsonObject> track(int seq, String deviceId, boolean expectedState, long timeoutMs) {
+        CompletableFuture<JsonObject> future = new CompletableFuture<>();
+        bySeq.put(seq, future);
+
+        Expectation expectation = null;
+        if (deviceId != null) {
+            expectation = new Expectation(seq, expectedState);
+            byDevice.put(deviceId, expectation);
+        }
+        final Expectation registered = expectation;
+
+        ScheduledFuture<?> timeout = timer.schedule(
+                () -> future.completeExceptionally(new TimeoutException("No reply to command " + seq)),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((reply, error) -> {
+            bySeq.remove(seq);
+            timeout.cancel(false);
+            if (registered != null) {
+                byDevice.remove(deviceId, registered);
+            }
+        });
+        return future;
+    }
+
+    // Replies with "ok": false fail the command with the hub's error code
+    boolean complete(int seq, JsonObject reply) {
+        CompletableFuture<JsonObject> future = bySeq.get(seq);
+        if (future == null) {
+            return false;
+        }
+        if (reply.has("ok") && !reply.get("ok").getAsBoolean()) {
+            String error = reply.has("error") ? reply.get("error").getAsString() : "rejected";
+            return future.completeExceptionally(new CommandException(error));
+        }
+        return future.complete(reply);
+    }
+
+    boolean fail(int seq, Throwable cause) {
+        CompletableFuture<JsonObject> future = bySeq.get(seq);
+        return future != null && future.completeExceptionally(cause);
+    }
+
+    void onDeviceState(String deviceId, boolean state) {
+        Expectation expectation = byDevice.get(deviceId);
+        if (expectation != null && expectation.state == state) {
+            JsonObject reply = new JsonObject();
+            reply.addProperty("device_id", deviceId);
+            reply.addProperty("isActive", state);
+            complete(expectation.seq, reply);
+        }
+    }
+
+    void failAll(Throwable cause) {
+        for (CompletableFuture<JsonObject> future : new ArrayList<>(bySeq.values())) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    void shutdown(Throwable cause) {
+        failAll(cause);
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.homie.services;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Plans reconnect attempts with capped exponential backoff and jitter so a
+// hub that's gone doesn't get hammered at a fixed rate. Retries stop while
+// the network is reported lost and restart right away when it comes back.
+class ReconnectScheduler {
+    private static final long INITIAL_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 60000;
+
+    private final ScheduledExecutorService scheduler;
+    private final Runnable connectAction;
+    private final Random random = new Random();
+
+    private int attempt = 0;
+    private boolean networkAvailable = true;
+    private ScheduledFuture<?> pending;
+
+    ReconnectScheduler(ScheduledExecutorService scheduler, Runnable connectAction) {
+        this.scheduler = scheduler;
+        this.connectAction = connectAction;
+    }
+
+    // After a failed or dropped connection
+    synchronized void scheduleRetry() {
+        if (!networkAvailable || pending != null) {
+            return;
+        }
+        long delay = nextDelay();
+        attempt++;
+        schedule(delay);
+    }
+
+    // After a successful connection
+    synchronized void reset() {
+        attempt = 0;
+        cancelPending();
+    }
+
+    synchronized void onNetworkAvailable() {
+        networkAvailable = true;
+        attempt = 0;
+        cancelPending();
+        schedule(0);
+    }
+
+    synchronized void onNetworkLost() {
+        networkAvailable = false;
+        cancelPending();
+    }
+
+    synchronized boolean isNetworkAvailable() {
+        return networkAvailable;
+    }
+
+    synchronized void cancel() {
+        cancelPending();
+    }
+
+    // Half the backoff window is fixed, the other half random, so clients
+    // that dropped together don't retry together
+    private long nextDelay() {
+        long window = Math.min(MAX_DELAY_MS, INITIAL_DELAY_MS << Math.min(attempt, 16));
+        long half = window / 2;
+        return half + (long) (random.nextDouble() * half);
+    }
+
+    private void schedule(long delayMs) {
+        pending = scheduler.schedule(this::fire, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void fire() {
+        synchronized (this) {
+            pending = null;
+            if (!networkAvailable) {
+                return;
+            }
+        }
+        connectAction.run();
+    }
+
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.homie.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Recent readings per sensor, kept in memory for trend charts. Each sensor
+// gets a ring buffer covering HISTORY_WINDOW_MS at SAMPLE_RESOLUTION_MS, about
+// 50 KB, so the total is bounded by the number of sensors.
+public final class SensorHistory {
+    public static final long HISTORY_WINDOW_MS = 6 * 60 * 60 * 1000L;
+    // The hub reads its DHT sensor every 10 s
+    private static final long SAMPLE_RESOLUTION_MS = 5000;
+    private static final int CAPACITY = (int) (HISTORY_WINDOW_MS / SAMPLE_RESOLUTION_MS);
+
+    private final Map<String, TimeSeriesBuffer> buffers = new ConcurrentHashMap<>();
+
+    public void record(String sensorId, long timeMs, float value) {
+        TimeSeriesBuffer buffer = buffers.get(sensorId);
+        if (buffer == null) {
+            buffer = buffers.computeIfAbsent(sensorId, id -> new TimeSeriesBuffer(CAPACITY, SAMPLE_RESOLUTION_MS));
+        }
+        buffer.add(timeMs, value);
+    }
+
+    // Readings from the last windowMs, downsampled to at most maxPoints.
+    // Null if the sensor has never reported.
+    public TimeSeriesBuffer.Samples query(String sensorId, long windowMs, int maxPoints) {
+        TimeSeriesBuffer buffer = buffers.get(sensorId);
+        if (buffer == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        return buffer.query(now - windowMs, now, maxPoints);
+    }
+
+    public List<String> getSensorIds() {
+        return new ArrayList<>(buffers.keySet());
+    }
+
+    public void forget(String sensorId) {
+        buffers.remove(sensorId);
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.homie.services;
+
+// Fixed-capacity ring of (timestamp, value) samples in primitive arrays, so
+// memory stays the same however long the app runs. Once full, the oldest
+// sample is overwritten. Samples closer together than the resolution replace
+// the newest one rather than taking a new slot, which keeps the window the
+// buffer covers from shrinking when a sensor reports faster than expected.
+public final class TimeSeriesBuffer {
+
+    // Chart-ready points, oldest first
+    public static final class Samples {
+        public final long[] times;
+        public final float[] values;
+        public final int size;
+
+        Samples(long[] times, float[] values, int size) {
+            this.times = times;
+            this.values = values;
+            this.size = size;
+        }
+    }
+
+    private final long[] times;
+    private final float[] values;
+    private final long resolutionMs;
+    private int head = 0; // next slot to write
+    private int size = 0;
+
+    public TimeSeriesBuffer(int capacity, long resolutionMs) {
+        this.times = new long[capacity];
+        this.values = new float[capacity];
+        this.resolutionMs = resolutionMs;
+    }
+
+    public synchronized void add(long timeMs, float value) {
+        if (size > 0) {
+            int newest = index(size - 1);
+            if (timeMs < times[newest]) {
+                return; // out of order
+            }
+            if (timeMs - times[newest] < resolutionMs) {
+                values[newest] = value;
+                return;
+            }
+        }
+        times[head] = timeMs;
+        values[head] = value;
+        head = (head + 1) % times.length;
+        if (size < times.length) {
+            size++;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    // At most maxPoints (but no fewer than two) samples between fromMs and
+    // toMs. When there are more, the range is cut into maxPoints / 2 time
+    // buckets and each contributes its minimum and maximum in time order, so
+    // spikes survive downsampling.
+    public synchronized Samples query(long fromMs, long toMs, int maxPoints) {
+        maxPoints = Math.max(2, maxPoints);
+        int first = firstAtOrAfter(fromMs);
+        int last = first;
+        while (last < size && times[index(last)] <= toMs) {
+            last++;
+        }
+        int count = last - first;
+
+        if (count <= maxPoints) {
+            long[] outTimes = new long[count];
+            float[] outValues = new float[count];
+            for (int i = 0; i < count; i++) {
+                int slot = index(first + i);
+                outTimes[i] = times[slot];
+                outValues[i] = values[slot];
+            }
+            return new Samples(outTimes, outValues, count);
+        }
+
+        int buckets = Math.max(1, maxPoints / 2);
+        long[] outTimes = new long[buckets * 2];
+        float[] outValues = new float[buckets * 2];
+        int out = 0;
+        long span = Math.max(1, toMs - fromMs);
+        int i = first;
+        for (int bucket = 0; bucket < buckets && i < last; bucket++) {
+            long bucketEnd = bucket == buckets - 1 ? Long.MAX_VALUE : fromMs + span * (bucket + 1) / buckets;
+            int minSlot = -1;
+            int maxSlot = -1;
+            for (; i < last && times[index(i)] < bucketEnd; i++) {
+                int slot = index(i);
+                if (minSlot < 0 || values[slot] < values[minSlot]) {
+                    minSlot = slot;
+                }
+                if (maxSlot < 0 || values[slot] > values[maxSlot]) {
+                    maxSlot = slot;
+                }
+            }
+            if (minSlot < 0) {
+                continue; // empty bucket, e.g. while disconnected
+            }
+            int earlier = times[minSlot] <= times[maxSlot] ? minSlot : maxSlot;
+            int later = earlier == minSlot ? maxSlot : minSlot;
+            outTimes[out] = times[earlier];
+            outValues[out++] = values[earlier];
+            if (later != earlier) {
+                outTimes[out] = times[later];
+                outValues[out++] = values[later];
+            }
+        }
+        return new Samples(outTimes, outValues, out);
+    }
+
+    // Logical position (0 = oldest) of the first sample at or after timeMs
+    private int firstAtOrAfter(long timeMs) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[index(mid)] < timeMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int index(int logical) {
+        int oldest = size < times.length ? 0 : head;
+        return (oldest + logical) % times.length;
+    }
+}
@@ -1,42 +1,92 @@
 package com.example.homie.services;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.IBinder;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
+import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import com.example.homie.model.Device;
-import com.google.gson.Gson;
+import com.example.homie.model.DeviceControl;
+import com.example.homie.repository.DeviceSnapshot;
+import com.example.homie.repository.HomeStateStore;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.handshake.ServerHandshake;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 
+// Keeps one HubConnection per configured hub and presents them as one home.
+// Device state from every hub lands in HomeStateStore; commands are routed
+// to the hub that owns the device (see HubConnection for how ids map to
+// hubs), and batches spanning hubs are split and sent to all of them at once.
 public class WebSocketService extends Service {
     private static final String TAG = "WebSocketService";
-    private static final String WS_URL = "ws://192.168.4.1:81";
+    private static final String PREFS_NAME = "homie_hubs";
+    private static final String KEY_HUBS = "hubs";
+    // Where a hub answers on its own access point. Its home network address
+    // is learned once connected and raced alongside (see HubConnection).
+    private static final String DEFAULT_HUB_URL = "ws://192.168.4.1:81";
 
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
-    private final Handler mainHandler = new Handler(Looper.getMainLooper());
-    private WebSocketClient webSocketClient;
     private final MutableLiveData<Boolean> connected = new MutableLiveData<>(false);
-    private final MutableLiveData<List<Device>> deviceUpdates = new MutableLiveData<>();
-    private final MutableLiveData<Map<String, Float>> temperatureData = new MutableLiveData<>();
     private final MutableLiveData<Boolean> syncInProgress = new MutableLiveData<>(false);
     private final MutableLiveData<Integer> connectionStatus = new MutableLiveData<>(0);
-    private final Map<String, Device> deviceCache = new HashMap<>();
-    private final Gson gson = new Gson();
+    private final MutableLiveData<Long> roundTripTime = new MutableLiveData<>();
+    private final HomeStateStore homeState = HomeStateStore.getInstance();
+    private final SensorHistory sensorHistory = new SensorHistory();
     private final IBinder binder = new WebSocketBinder();
+    private final HubConnection.Listener hubListener = hub -> publishStatus();
+    private final HomeStateStore.DeviceController deviceController = new HomeStateStore.DeviceController() {
+        @Override
+        public CompletableFuture<?> setDeviceState(String deviceId, boolean state) {
+            return toggleDevice(deviceId, state);
+        }
+
+        @Override
+        public CompletableFuture<List<String>> setDevicesState(List<String> deviceIds, boolean state) {
+            return WebSocketService.this.setDevicesState(deviceIds, state).thenApply(results -> {
+                List<String> failed = new ArrayList<>();
+                for (int i = 0; i < results.size(); i++) {
+                    if (!results.get(i).isOk()) {
+                        failed.add(deviceIds.get(i));
+                    }
+                }
+                return failed;
+            });
+        }
+
+        @Override
+        public CompletableFuture<?> updateDevice(Device device) {
+            return WebSocketService.this.updateDevice(device);
+        }
+
+        @Override
+        public void streamLevel(String deviceId, DeviceControl control, int value) {
+            WebSocketService.this.streamLevel(deviceId, control, value);
+        }
+
+        @Override
+        public CompletableFuture<?> setLevel(String deviceId, DeviceControl control, int value) {
+            return WebSocketService.this.setLevel(deviceId, control, value);
+        }
+    };
+
+    // By hub id. Replaced, never modified, so it can be read from any thread.
+    private volatile Map<String, HubConnection> hubs = Collections.emptyMap();
+    private long heartbeatIntervalMs = Heartbeat.DEFAULT_INTERVAL_MS;
+    private int heartbeatMaxMissed = Heartbeat.DEFAULT_MAX_MISSED;
 
     public class WebSocketBinder extends Binder {
         public WebSocketService getService() {
@@ -48,217 +98,277 @@ public class WebSocketService extends Service {
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "WebSocketService created");
-        connect();
+        homeState.init(this);
+        homeState.setDeviceController(deviceController);
+        for (Map.Entry<String, List<String>> hub : loadHubUrls().entrySet()) {
+            startHub(hub.getKey(), hub.getValue());
+        }
     }
 
-    private void connect() {
-        executorService.execute(() -> {
-            try {
-                URI uri = URI.create(WS_URL);
-                webSocketClient = new WebSocketClient(uri) {
-                    @Override
-                    public void onOpen(ServerHandshake handshakedata) {
-                        Log.d(TAG, "WebSocket opened: " + handshakedata.getHttpStatusMessage());
-                        mainHandler.post(() -> {
-                            connected.setValue(true);
-                            connectionStatus.setValue(2);
-                            requestInitialData();
-                        });
-                    }
+    // ===== Hubs =====
 
-                    @Override
-                    public void onMessage(String message) {
-                        try {
-                            handleWebSocketMessage(message);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error processing WebSocket message", e);
-                        }
-                    }
-
-                    @Override
-                    public void onClose(int code, String reason, boolean remote) {
-                        Log.d(TAG, "WebSocket closed: " + reason + " (code: " + code + "), remote: " + remote);
-                        mainHandler.post(() -> {
-                            connected.setValue(false);
-                            connectionStatus.setValue(0);
-                        });
-                        // reconnect with delay
-                        executorService.execute(() -> {
-                            try {
-                                Thread.sleep(3000);
-                                connect();
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                            }
-                        });
-                    }
+    // Adds a hub, or gives an existing one new addresses, and connects to
+    // it. All addresses are tried at once and the first to answer is used.
+    // The primary hub is "main"; other ids must not contain '/'.
+    public synchronized void addHub(String hubId, String... urls) {
+        if (hubId == null || hubId.isEmpty() || hubId.indexOf(HubConnection.ID_SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Invalid hub id: " + hubId);
+        }
+        if (urls.length == 0) {
+            throw new IllegalArgumentException("No address for hub " + hubId);
+        }
+        HubConnection current = hubs.get(hubId);
+        if (current != null) {
+            current.shutdown();
+        }
+        startHub(hubId, Arrays.asList(urls));
+        saveHubUrls();
+    }
 
-                    @Override
-                    public void onError(Exception ex) {
-                        Log.e(TAG, "WebSocket error", ex);
-                        mainHandler.post(() -> {
-                            connected.setValue(false);
-                            connectionStatus.setValue(-1);
-                        });
-                    }
-                };
-                webSocketClient.connect();
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to create WebSocket client", e);
-                mainHandler.post(() -> {
-                    connected.setValue(false);
-                    connectionStatus.setValue(-1);
-                });
-            }
-        });
+    // Disconnects the hub; its devices stay in the store, offline
+    public synchronized void removeHub(String hubId) {
+        HubConnection hub = hubs.get(hubId);
+        if (hub == null) {
+            return;
+        }
+        Map<String, HubConnection> updated = new LinkedHashMap<>(hubs);
+        updated.remove(hubId);
+        hubs = Collections.unmodifiableMap(updated);
+        hub.shutdown();
+        saveHubUrls();
+        publishStatus();
     }
 
-    public void requestInitialData() {
-        sendCommand("get_initial_data", null);
+    public List<String> getHubIds() {
+        return new ArrayList<>(hubs.keySet());
     }
 
-    public void toggleDevice(String deviceId, boolean state) {
-        JsonObject payload = new JsonObject();
-        payload.addProperty("device_id", deviceId);
-        payload.addProperty("state", state);
-        sendCommand("toggle_device", payload);
+    private synchronized void startHub(String hubId, List<String> urls) {
+        List<URI> endpoints = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            endpoints.add(URI.create(url));
+        }
+        HubConnection hub = new HubConnection(this, hubId, endpoints, homeState, sensorHistory, hubListener);
+        hub.setHeartbeat(heartbeatIntervalMs, heartbeatMaxMissed);
+        Map<String, HubConnection> updated = new LinkedHashMap<>(hubs);
+        updated.put(hubId, hub);
+        hubs = Collections.unmodifiableMap(updated);
+        hub.connect();
     }
 
-    public void updateDevice(Device device) {
-        JsonObject payload = new JsonObject();
-        payload.addProperty("device_id", device.getId());
-        payload.addProperty("name", device.getName());
-        payload.addProperty("type", device.getType());
-        payload.addProperty("room", device.getRoom());
-        sendCommand("update_device", payload);
+    // Null if the device belongs to a hub that isn't configured
+    private HubConnection hubFor(String deviceId) {
+        return hubs.get(HubConnection.hubIdOf(deviceId));
     }
 
-    private void sendCommand(String type, JsonObject data) {
-        if (webSocketClient != null && webSocketClient.isOpen()) {
+    // {hubId: [url, ...]}; a single url string is read as a list of one
+    private Map<String, List<String>> loadHubUrls() {
+        Map<String, List<String>> urls = new LinkedHashMap<>();
+        String json = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getString(KEY_HUBS, null);
+        if (json != null) {
             try {
-                JsonObject message = new JsonObject();
-                message.addProperty("type", type);
-                if (data != null) {
-                    // Use a fixed "data" field for consistency with parsing
-                    message.add("data", data);
+                for (Map.Entry<String, JsonElement> entry : JsonParser.parseString(json).getAsJsonObject().entrySet()) {
+                    List<String> hubUrls = new ArrayList<>();
+                    if (entry.getValue().isJsonArray()) {
+                        for (JsonElement url : entry.getValue().getAsJsonArray()) {
+                            hubUrls.add(url.getAsString());
+                        }
+                    } else {
+                        hubUrls.add(entry.getValue().getAsString());
+                    }
+                    if (!hubUrls.isEmpty()) {
+                        urls.put(entry.getKey(), hubUrls);
+                    }
                 }
-                webSocketClient.send(message.toString());
-                Log.d(TAG, "Sent WebSocket message: " + message.toString());
             } catch (Exception e) {
-                Log.e(TAG, "Failed to send WebSocket message", e);
+                Log.e(TAG, "Discarding unreadable hub list", e);
+                urls.clear();
             }
-        } else {
-            Log.w(TAG, "WebSocket not open. Cannot send: " + type);
         }
+        if (urls.isEmpty()) {
+            urls.put(HubConnection.PRIMARY_HUB_ID, Collections.singletonList(DEFAULT_HUB_URL));
+        }
+        return urls;
     }
 
-    private void handleWebSocketMessage(String message) {
-        try {
-            JsonObject obj = JsonParser.parseString(message).getAsJsonObject();
-            if (!obj.has("type"))
-                return;
-            String type = obj.get("type").getAsString();
-            switch (type) {
-                case "initial_devices":
-                    handleInitialDevices(obj);
-                    break;
-                case "device_state":
-                    handleDeviceState(obj);
-                    break;
-                case "temperature":
-                    handleTemperature(obj);
-                    break;
-                case "heartbeat":
-                    Log.d(TAG, "Received heartbeat from ESP32");
-                    break;
-                case "performance":
-                    Log.d(TAG, "Performance update: " + obj);
-                    break;
-                default:
-                    Log.d(TAG, "Unknown message type: " + type);
-                    break;
+    private void saveHubUrls() {
+        JsonObject urls = new JsonObject();
+        for (HubConnection hub : hubs.values()) {
+            JsonArray hubUrls = new JsonArray();
+            for (URI endpoint : hub.getEndpoints()) {
+                hubUrls.add(endpoint.toString());
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error parsing WebSocket message: " + message, e);
+            urls.add(hub.getHubId(), hubUrls);
         }
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putString(KEY_HUBS, urls.toString()).apply();
     }
 
-    private void handleInitialDevices(JsonObject obj) {
-        try {
-            List<Device> devices = new ArrayList<>();
-            var devicesArray = obj.getAsJsonArray("devices");
-            if (devicesArray != null) {
-                for (var element : devicesArray) {
-                    JsonObject dev = element.getAsJsonObject();
-                    Device device = new Device(
-                            dev.get("id").getAsString(),
-                            dev.get("name").getAsString(),
-                            dev.get("type").getAsString(),
-                            dev.get("room").getAsString(),
-                            dev.get("isActive").getAsBoolean());
-                    if (dev.has("pin"))
-                        device.setPin(dev.get("pin").getAsInt());
-                    double temp = dev.has("temperature") ? dev.get("temperature").getAsDouble() : Double.NaN;
-                    device.setTemperature(temp);
-                    if (dev.has("lastUpdate"))
-                        device.setLastUpdate(dev.get("lastUpdate").getAsLong());
-                    deviceCache.put(device.getId(), device);
-                    devices.add(device);
-                }
+    // Connected while any hub is; the round trip is the slowest connected
+    // hub's, since that's what the slowest command waits on
+    private void publishStatus() {
+        boolean anyOpen = false;
+        boolean anyError = false;
+        boolean anySyncing = false;
+        long slowest = -1;
+        for (HubConnection hub : hubs.values()) {
+            anySyncing |= hub.isSyncing();
+            if (hub.getStatus() == HubConnection.STATUS_CONNECTED) {
+                anyOpen = true;
+                slowest = Math.max(slowest, hub.getRoundTripTime());
+            } else if (hub.getStatus() == HubConnection.STATUS_ERROR) {
+                anyError = true;
             }
-            mainHandler.post(() -> deviceUpdates.setValue(new ArrayList<>(devices)));
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to parse initial devices", e);
         }
+        connected.postValue(anyOpen);
+        syncInProgress.postValue(anySyncing);
+        connectionStatus.postValue(anyOpen ? HubConnection.STATUS_CONNECTED
+                : anyError ? HubConnection.STATUS_ERROR : HubConnection.STATUS_DISCONNECTED);
+        roundTripTime.postValue(slowest >= 0 ? slowest : null);
     }
 
-    private void handleDeviceState(JsonObject obj) {
-        try {
-            String id = obj.get("id").getAsString();
-            boolean state = obj.get("isActive").getAsBoolean();
-            Device device = deviceCache.get(id);
-            if (device != null) {
-                device.setActive(state);
-                device.setLastUpdate(System.currentTimeMillis());
-                deviceCache.put(id, device);
-                mainHandler.post(() -> deviceUpdates.setValue(new ArrayList<>(deviceCache.values())));
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to handle device state update", e);
+    // Called when the hubs' network appears; reconnects at once instead of
+    // waiting out the current backoff
+    public void onNetworkAvailable() {
+        for (HubConnection hub : hubs.values()) {
+            hub.onNetworkAvailable();
+        }
+    }
+
+    // Called when the hubs' network goes away; no retries until it is back
+    public void onNetworkLost() {
+        for (HubConnection hub : hubs.values()) {
+            hub.onNetworkLost();
         }
     }
 
-    private void handleTemperature(JsonObject obj) {
-        try {
-            String id = obj.get("id").getAsString();
-            float temp = obj.get("temperature").getAsFloat();
-            Map<String, Float> data = new HashMap<>();
-            data.put(id, temp);
-            mainHandler.post(() -> temperatureData.setValue(data));
-            Device device = deviceCache.get(id);
-            if (device != null) {
-                device.setTemperature((double) temp);
-                device.setLastUpdate(System.currentTimeMillis());
-                deviceCache.put(id, device);
-                mainHandler.post(() -> deviceUpdates.setValue(new ArrayList<>(deviceCache.values())));
+    public void requestInitialData() {
+        for (HubConnection hub : hubs.values()) {
+            hub.requestInitialData();
+        }
+    }
+
+    // ===== Commands =====
+
+    // The returned future completes with the hub's reply once the device has
+    // switched, or fails on rejection, disconnect or timeout. Cancelling it
+    // only stops waiting; the command has already been sent.
+    public CompletableFuture<JsonObject> toggleDevice(String deviceId, boolean state) {
+        HubConnection hub = hubFor(deviceId);
+        return hub != null ? hub.toggleDevice(deviceId, state) : unknownHub();
+    }
+
+    // Operations are grouped by owning hub, each group goes out as one frame,
+    // and all hubs are sent to at once. Completes with one result per
+    // operation, in batch order.
+    public CompletableFuture<List<CommandBatch.Result>> sendBatch(CommandBatch batch) {
+        JsonArray operations = batch.getOperations();
+        List<CommandBatch.Result> results = new ArrayList<>(Collections.nCopies(operations.size(),
+                (CommandBatch.Result) null));
+        Map<HubConnection, CommandBatch> parts = new LinkedHashMap<>();
+        Map<HubConnection, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < operations.size(); i++) {
+            JsonObject operation = operations.get(i).getAsJsonObject();
+            HubConnection hub = hubFor(operation.get("device_id").getAsString());
+            if (hub == null) {
+                results.set(i, new CommandBatch.Result(false, "unknown_hub"));
+                continue;
+            }
+            CommandBatch part = parts.get(hub);
+            if (part == null) {
+                part = new CommandBatch();
+                parts.put(hub, part);
+                positions.put(hub, new ArrayList<>());
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to handle temperature update", e);
+            part.add(hub.toLocal(operation));
+            positions.get(hub).add(i);
+        }
+
+        // One hub, the usual case: its future as is, so cancel() reaches it
+        if (parts.size() == 1 && parts.values().iterator().next().size() == operations.size()) {
+            Map.Entry<HubConnection, CommandBatch> only = parts.entrySet().iterator().next();
+            return only.getKey().sendBatch(only.getValue());
         }
+
+        List<CompletableFuture<?>> sends = new ArrayList<>(parts.size());
+        for (Map.Entry<HubConnection, CommandBatch> part : parts.entrySet()) {
+            List<Integer> at = positions.get(part.getKey());
+            sends.add(part.getKey().sendBatch(part.getValue()).handle((partResults, error) -> {
+                for (int j = 0; j < at.size(); j++) {
+                    results.set(at.get(j), error == null ? partResults.get(j) : CommandBatch.failed(error));
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).thenApply(ignored -> results);
     }
 
+    public CompletableFuture<List<CommandBatch.Result>> setDevicesState(Collection<String> deviceIds, boolean state) {
+        CommandBatch batch = new CommandBatch();
+        for (String deviceId : deviceIds) {
+            batch.toggle(deviceId, state);
+        }
+        return sendBatch(batch);
+    }
+
+    public CompletableFuture<JsonObject> updateDevice(Device device) {
+        HubConnection hub = hubFor(device.getId());
+        return hub != null ? hub.updateDevice(device) : unknownHub();
+    }
+
+    // For slider drags: coalesced to the latest value and sent at most
+    // ControlStream.SEND_INTERVAL_MS apart, without acks
+    public void streamLevel(String deviceId, DeviceControl control, int value) {
+        HubConnection hub = hubFor(deviceId);
+        if (hub != null) {
+            hub.streamLevel(deviceId, control, value);
+        }
+    }
+
+    // The value a slider was released on. Acknowledged, queued while offline,
+    // persisted by the hub, and sent after any streamed value for the same
+    // slider.
+    public CompletableFuture<JsonObject> setLevel(String deviceId, DeviceControl control, int value) {
+        HubConnection hub = hubFor(deviceId);
+        return hub != null ? hub.setLevel(deviceId, control, value) : unknownHub();
+    }
+
+    private static CompletableFuture<JsonObject> unknownHub() {
+        CompletableFuture<JsonObject> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new CommandException("unknown_hub"));
+        return failed;
+    }
+
+    // ===== State =====
+
+    public void setMaxPublishRate(int updatesPerSecond) {
+        homeState.setMaxPublishRate(updatesPerSecond);
+    }
+
+    // True while any hub is connected
     public MutableLiveData<Boolean> getConnected() {
         return connected;
     }
 
-    public MutableLiveData<List<Device>> getDeviceUpdates() {
-        return deviceUpdates;
+    // Device state lives in HomeStateStore; these are its projections
+    public LiveData<List<Device>> getDeviceUpdates() {
+        return homeState.getDevices();
     }
 
-    public MutableLiveData<Map<String, Float>> getTemperatureData() {
-        return temperatureData;
+    public LiveData<DeviceSnapshot> getDeviceSnapshots() {
+        return homeState.getDeviceSnapshots();
     }
 
+    public LiveData<Map<String, Float>> getTemperatureData() {
+        return homeState.getTemperatures();
+    }
+
+    public SensorHistory getSensorHistory() {
+        return sensorHistory;
+    }
+
+    // True from asking any hub for its devices until its dump or delta is
+    // applied
     public MutableLiveData<Boolean> getSyncInProgress() {
         return syncInProgress;
     }
@@ -267,6 +377,23 @@ public class WebSocketService extends Service {
         return connectionStatus;
     }
 
+    // Smoothed round trip to the slowest connected hub in ms; null while
+    // no hub is connected or before the first pong
+    public LiveData<Long> getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    // Pings every intervalMs. Once maxMissed go unanswered and another
+    // interval passes without any frame from a hub, its link is dropped,
+    // its devices marked offline and a reconnect started.
+    public synchronized void setHeartbeat(long intervalMs, int maxMissed) {
+        heartbeatIntervalMs = intervalMs;
+        heartbeatMaxMissed = maxMissed;
+        for (HubConnection hub : hubs.values()) {
+            hub.setHeartbeat(intervalMs, maxMissed);
+        }
+    }
+
     public boolean isConnected() {
         return Boolean.TRUE.equals(connected.getValue());
     }
@@ -279,11 +406,10 @@ public class WebSocketService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (webSocketClient != null) {
-            webSocketClient.close();
-            webSocketClient = null;
+        for (HubConnection hub : hubs.values()) {
+            hub.shutdown();
         }
-        executorService.shutdown();
+        homeState.clearDeviceController(deviceController);
         Log.d(TAG, "WebSocketService destroyed");
     }
 }
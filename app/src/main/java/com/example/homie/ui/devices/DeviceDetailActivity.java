@@ -10,11 +10,17 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.example.homie.R;
 import com.example.homie.model.Device;
+import com.example.homie.model.DeviceControl;
+import com.example.homie.model.DeviceType;
 import com.example.homie.repository.SmartHomeRepository;
 
 public class DeviceDetailActivity extends AppCompatActivity {
 
     private Device device;
+    // Power state when the screen opened; only a change from it is sent
+    private boolean openedActive;
+    // What the slider adjusts, or null if this device has none
+    private DeviceControl control;
     private SmartHomeRepository repository;
 
     private ImageView deviceIcon;
@@ -48,6 +54,8 @@ public class DeviceDetailActivity extends AppCompatActivity {
             return;
         }
 
+        openedActive = device.isActive();
+
         // Setup toolbar
         if (getSupportActionBar() != null) {
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
@@ -78,19 +86,21 @@ public class DeviceDetailActivity extends AppCompatActivity {
         deviceSwitch.setChecked(device.isActive());
 
         // Set appropriate icon based on device type
-        int iconResource = getDeviceIcon(device.getType());
+        int iconResource = getDeviceIcon(device.getDeviceType());
         deviceIcon.setImageResource(iconResource);
 
-        // Show brightness control only for lights
-        if (device.getType().toLowerCase().contains("light")) {
+        // Show the slider only for devices with a continuous setting
+        control = DeviceControl.forType(device.getDeviceType());
+        if (control != null) {
             brightnessSeekBar.setVisibility(android.view.View.VISIBLE);
             brightnessLabel.setVisibility(android.view.View.VISIBLE);
             brightnessValue.setVisibility(android.view.View.VISIBLE);
 
-            // Set initial brightness value (assuming 70% default)
-            int brightness = 70;
-            brightnessSeekBar.setProgress(brightness);
-            brightnessValue.setText(brightness + "%");
+            brightnessLabel.setText(getControlLabel(control));
+            brightnessSeekBar.setMax(control.getMax());
+            int level = control.get(device);
+            brightnessSeekBar.setProgress(level);
+            brightnessValue.setText(formatLevel(level));
         } else {
             brightnessSeekBar.setVisibility(android.view.View.GONE);
             brightnessLabel.setVisibility(android.view.View.GONE);
@@ -98,16 +108,32 @@ public class DeviceDetailActivity extends AppCompatActivity {
         }
     }
 
-    private int getDeviceIcon(String deviceType) {
-        String type = deviceType.toLowerCase();
-        if (type.contains("light")) {
-            return R.drawable.ic_lightbulb;
-        } else if (type.contains("thermostat") || type.contains("temperature")) {
-            return R.drawable.ic_thermostat;
-        } else if (type.contains("lock")) {
-            return R.drawable.ic_lock;
-        } else {
-            return R.drawable.ic_devices;
+    private String getControlLabel(DeviceControl control) {
+        switch (control) {
+            case SPEED:
+                return "Speed";
+            case VOLUME:
+                return "Volume";
+            default:
+                return "Brightness";
+        }
+    }
+
+    private String formatLevel(int level) {
+        return control == DeviceControl.SPEED ? String.valueOf(level) : level + "%";
+    }
+
+    private int getDeviceIcon(DeviceType deviceType) {
+        switch (deviceType) {
+            case LIGHT:
+                return R.drawable.ic_lightbulb;
+            case THERMOSTAT:
+            case TEMPERATURE_SENSOR:
+                return R.drawable.ic_thermostat;
+            case LOCK:
+                return R.drawable.ic_lock;
+            default:
+                return R.drawable.ic_devices;
         }
     }
 
@@ -120,8 +146,10 @@ public class DeviceDetailActivity extends AppCompatActivity {
         brightnessSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                if (fromUser) {
-                    brightnessValue.setText(progress + "%");
+                if (fromUser && control != null) {
+                    brightnessValue.setText(formatLevel(progress));
+                    control.set(device, progress);
+                    repository.streamLevel(device.getId(), control, progress);
                 }
             }
 
@@ -131,16 +159,23 @@ public class DeviceDetailActivity extends AppCompatActivity {
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                if (control != null) {
+                    repository.commitLevel(device.getId(), control, seekBar.getProgress());
+                }
             }
         });
 
         saveButton.setOnClickListener(v -> {
             // Save device settings
             repository.updateDevice(device);
+            if (device.isActive() != openedActive) {
+                repository.setDeviceState(device.getId(), device.isActive());
+                openedActive = device.isActive();
+            }
 
             String message = "Settings saved for " + device.getName();
             if (brightnessSeekBar.getVisibility() == android.view.View.VISIBLE) {
-                message += " (Brightness: " + brightnessSeekBar.getProgress() + "%)";
+                message += " (" + getControlLabel(control) + ": " + formatLevel(brightnessSeekBar.getProgress()) + ")";
             }
 
             Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
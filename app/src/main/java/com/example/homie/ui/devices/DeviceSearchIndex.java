@@ -0,0 +1,265 @@
+package com.example.homie.ui.devices;
+
+import com.example.homie.model.Device;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Inverted index over device name, room and type words. Prefix lookups are
+// a range scan of the sorted term map. A query word with a typo is compared
+// only with terms starting with its first or second letter, which covers
+// transposed and mistyped letters without scanning every term. Every query
+// word must match some word of the device, and words from the name count
+// for more. Updates touch only the changed device's terms. Safe to update
+// from the main thread while searches run elsewhere.
+final class DeviceSearchIndex {
+    private static final int SCORE_EXACT = 6;
+    private static final int SCORE_PREFIX = 4;
+    private static final int SCORE_FUZZY = 2;
+    private static final int NAME_BONUS = 1;
+    // Shorter words are too easily within one edit of something
+    private static final int MIN_FUZZY_LENGTH = 3;
+    private static final int LONG_WORD_LENGTH = 6;
+
+    // Term -> device id -> whether the term is in the device's name
+    private final TreeMap<String, Map<String, Boolean>> postings = new TreeMap<>();
+    private final Map<Character, Set<String>> termsByFirstChar = new HashMap<>();
+    private final Map<String, Device> devices = new HashMap<>();
+    private final Map<String, List<String>> termsById = new HashMap<>();
+
+    // State-only changes just swap the stored device; renames, moves and
+    // type changes re-index its words. Returns whether the indexed text
+    // changed, i.e. whether searches may now match differently.
+    synchronized boolean put(Device device) {
+        String id = device.getId();
+        Device current = devices.put(id, device);
+        if (current != null && sameText(current, device)) {
+            return false;
+        }
+        unindex(id);
+        Set<String> nameTerms = new HashSet<>(tokenize(device.getName()));
+        List<String> terms = termsOf(device);
+        termsById.put(id, terms);
+        for (String term : terms) {
+            Map<String, Boolean> ids = postings.get(term);
+            if (ids == null) {
+                ids = new HashMap<>();
+                postings.put(term, ids);
+                Set<String> bucket = termsByFirstChar.get(term.charAt(0));
+                if (bucket == null) {
+                    bucket = new HashSet<>();
+                    termsByFirstChar.put(term.charAt(0), bucket);
+                }
+                bucket.add(term);
+            }
+            ids.put(id, nameTerms.contains(term));
+        }
+        return true;
+    }
+
+    synchronized boolean remove(String id) {
+        if (devices.remove(id) == null) {
+            return false;
+        }
+        unindex(id);
+        return true;
+    }
+
+    // Best matches first, ties by name
+    synchronized List<Device> search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<String, Integer> scores = null;
+        for (String word : words) {
+            Map<String, Integer> wordScores = match(word);
+            if (scores == null) {
+                scores = wordScores;
+            } else {
+                scores.keySet().retainAll(wordScores.keySet());
+                for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+                    entry.setValue(entry.getValue() + wordScores.get(entry.getKey()));
+                }
+            }
+            if (scores.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(scores.entrySet());
+        Collections.sort(ranked, (a, b) -> {
+            int byScore = Integer.compare(b.getValue(), a.getValue());
+            if (byScore != 0) {
+                return byScore;
+            }
+            return compareNames(devices.get(a.getKey()), devices.get(b.getKey()));
+        });
+        List<Device> results = new ArrayList<>(Math.min(limit, ranked.size()));
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            results.add(devices.get(ranked.get(i).getKey()));
+        }
+        return results;
+    }
+
+    // Best score per device for one query word
+    private Map<String, Integer> match(String word) {
+        Map<String, Integer> scores = new HashMap<>();
+        for (Map.Entry<String, Map<String, Boolean>> entry
+                : postings.subMap(word, true, word + Character.MAX_VALUE, false).entrySet()) {
+            int score = entry.getKey().equals(word) ? SCORE_EXACT : SCORE_PREFIX;
+            addScores(scores, entry.getValue(), score);
+        }
+        if (word.length() >= MIN_FUZZY_LENGTH && !isNumber(word)) {
+            int maxEdits = word.length() >= LONG_WORD_LENGTH ? 2 : 1;
+            fuzzyMatch(word, termsByFirstChar.get(word.charAt(0)), maxEdits, scores);
+            if (word.charAt(1) != word.charAt(0)) {
+                fuzzyMatch(word, termsByFirstChar.get(word.charAt(1)), maxEdits, scores);
+            }
+        }
+        return scores;
+    }
+
+    private void fuzzyMatch(String word, Set<String> candidates, int maxEdits, Map<String, Integer> scores) {
+        if (candidates == null) {
+            return;
+        }
+        for (String term : candidates) {
+            // Prefix hits already scored higher above
+            if (term.startsWith(word) || term.length() < word.length() - maxEdits) {
+                continue;
+            }
+            if (prefixDistance(word, term, maxEdits) <= maxEdits) {
+                addScores(scores, postings.get(term), SCORE_FUZZY);
+            }
+        }
+    }
+
+    private static void addScores(Map<String, Integer> scores, Map<String, Boolean> ids, int score) {
+        for (Map.Entry<String, Boolean> entry : ids.entrySet()) {
+            int total = score + (entry.getValue() ? NAME_BONUS : 0);
+            Integer current = scores.get(entry.getKey());
+            if (current == null || current < total) {
+                scores.put(entry.getKey(), total);
+            }
+        }
+    }
+
+    private static boolean isNumber(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (!Character.isDigit(word.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Edit distance (with transpositions) between the query word and the
+    // closest-length prefix of the term, so "kitchn" matches "kitchen" and
+    // "ktich" matches "kitchen" as it's typed. Stops early once every path
+    // exceeds max.
+    static int prefixDistance(String word, String term, int max) {
+        int n = word.length();
+        int m = Math.min(term.length(), n + max);
+        int[] twoBack = new int[m + 1];
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= n; i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= m; j++) {
+                int cost = word.charAt(i - 1) == term.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && word.charAt(i - 1) == term.charAt(j - 2)
+                        && word.charAt(i - 2) == term.charAt(j - 1)) {
+                    value = Math.min(value, twoBack[j - 2] + 1);
+                }
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > max) {
+                return rowMin;
+            }
+            int[] recycled = twoBack;
+            twoBack = previous;
+            previous = current;
+            current = recycled;
+        }
+        // Any prefix of the term may be the one being typed
+        int best = Integer.MAX_VALUE;
+        for (int j = Math.max(0, n - max); j <= m; j++) {
+            best = Math.min(best, previous[j]);
+        }
+        return best;
+    }
+
+    private void unindex(String id) {
+        List<String> terms = termsById.remove(id);
+        if (terms == null) {
+            return;
+        }
+        for (String term : terms) {
+            Map<String, Boolean> ids = postings.get(term);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(term);
+                    Set<String> bucket = termsByFirstChar.get(term.charAt(0));
+                    bucket.remove(term);
+                    if (bucket.isEmpty()) {
+                        termsByFirstChar.remove(term.charAt(0));
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<String> termsOf(Device device) {
+        Set<String> terms = new HashSet<>();
+        terms.addAll(tokenize(device.getName()));
+        terms.addAll(tokenize(device.getRoom()));
+        terms.addAll(tokenize(device.getType()));
+        return new ArrayList<>(terms);
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static boolean sameText(Device a, Device b) {
+        return Objects.equals(a.getName(), b.getName())
+                && Objects.equals(a.getRoom(), b.getRoom())
+                && Objects.equals(a.getType(), b.getType());
+    }
+
+    private static int compareNames(Device a, Device b) {
+        String nameA = a.getName() != null ? a.getName() : "";
+        String nameB = b.getName() != null ? b.getName() : "";
+        return nameA.compareToIgnoreCase(nameB);
+    }
+}
@@ -6,6 +6,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import androidx.annotation.NonNull;
+import androidx.appcompat.widget.SearchView;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.GridLayoutManager;
@@ -15,6 +16,7 @@ import com.example.homie.adapter.DeviceAdapter;
 import com.example.homie.databinding.FragmentDevicesBinding;
 import com.example.homie.model.Device;
 import java.util.ArrayList;
+import java.util.List;
 
 public class DevicesFragment extends Fragment implements DeviceAdapter.OnDeviceClickListener {
 
@@ -23,6 +25,7 @@ public class DevicesFragment extends Fragment implements DeviceAdapter.OnDeviceC
     private DeviceAdapter deviceAdapter;
     private RecyclerView devicesRecyclerView;
     private Button btnAll, btnActive, btnInactive;
+    private SearchView searchView;
     private String currentFilter = "all";
 
     public View onCreateView(@NonNull LayoutInflater inflater,
@@ -45,6 +48,25 @@ public class DevicesFragment extends Fragment implements DeviceAdapter.OnDeviceC
         btnAll = root.findViewById(R.id.btn_filter_all);
         btnActive = root.findViewById(R.id.btn_filter_active);
         btnInactive = root.findViewById(R.id.btn_filter_inactive);
+        searchView = root.findViewById(R.id.device_search);
+
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                devicesViewModel.setSearchQuery(query);
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                devicesViewModel.setSearchQuery(newText);
+                if (!devicesViewModel.isSearching()) {
+                    updateDevicesList();
+                }
+                return true;
+            }
+        });
     }
 
     private void setupRecyclerView() {
@@ -99,14 +121,22 @@ public class DevicesFragment extends Fragment implements DeviceAdapter.OnDeviceC
 
     private void observeViewModel() {
         devicesViewModel.getDevices().observe(getViewLifecycleOwner(), devices -> {
-            if (devices != null) {
+            if (devices != null && !devicesViewModel.isSearching()) {
+                updateDevicesList();
+            }
+        });
+        devicesViewModel.getSearchResults().observe(getViewLifecycleOwner(), results -> {
+            if (results != null && devicesViewModel.isSearching()) {
                 updateDevicesList();
             }
         });
     }
 
     private void updateDevicesList() {
-        deviceAdapter.updateDevices(devicesViewModel.getFilteredDevices(currentFilter));
+        List<Device> devices = devicesViewModel.getFilteredDevices(currentFilter);
+        if (devices != null) {
+            deviceAdapter.updateDevices(devices);
+        }
     }
 
     @Override
@@ -2,17 +2,70 @@ package com.example.homie.ui.devices;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModel;
 import com.example.homie.model.Device;
+import com.example.homie.model.Room;
+import com.example.homie.repository.DeviceSnapshot;
+import com.example.homie.repository.HomeStateStore;
 import com.example.homie.repository.SmartHomeRepository;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class DevicesViewModel extends ViewModel {
+    // Waits for a pause in typing before searching
+    private static final long SEARCH_DEBOUNCE_MS = 150;
+    private static final int MAX_SEARCH_RESULTS = 200;
+    // Index updates and searches run here, in order, off the main thread
+    private static final ScheduledExecutorService SEARCH_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
 
     private SmartHomeRepository repository;
+    private final HomeStateStore store = HomeStateStore.getInstance();
     private LiveData<List<Device>> devices;
     private MutableLiveData<String> filterType;
 
+    private final DeviceSearchIndex searchIndex = new DeviceSearchIndex();
+    private volatile String searchQuery = "";
+    private ScheduledFuture<?> pendingSearch;
+    private boolean searchIndexAttached;
+    // Ids in the last posted results. SEARCH_EXECUTOR only.
+    private Set<String> resultIds = new HashSet<>();
+    // Hands changed devices to the index. The store's own instances are
+    // read, not copied, since they never change once stored; the indexing
+    // happens on SEARCH_EXECUTOR. The search only reruns if a change can
+    // alter the results: telemetry for devices outside them just updates
+    // the index.
+    private final Observer<DeviceSnapshot> indexUpdater = snapshot -> {
+        List<String> removed = new ArrayList<>();
+        List<Device> changed = new ArrayList<>();
+        for (String id : snapshot.getChangedIds()) {
+            Device device = store.get(id);
+            if (device != null) {
+                changed.add(device);
+            } else {
+                removed.add(id);
+            }
+        }
+        SEARCH_EXECUTOR.execute(() -> {
+            boolean affectsResults = false;
+            for (String id : removed) {
+                affectsResults |= searchIndex.remove(id);
+            }
+            for (Device device : changed) {
+                affectsResults |= searchIndex.put(device) || resultIds.contains(device.getId());
+            }
+            if (affectsResults) {
+                runSearch();
+            }
+        });
+    };
+
     public DevicesViewModel() {
         repository = SmartHomeRepository.getInstance();
         devices = repository.getDevices();
@@ -36,22 +89,24 @@ public class DevicesViewModel extends ViewModel {
         repository.toggleDevice(deviceId);
     }
 
+    // Applies the filter to the search results while a search is active,
+    // otherwise to every device
     public List<Device> getFilteredDevices(String filter) {
-        List<Device> allDevices = devices.getValue();
+        List<Device> allDevices = isSearching() ? searchResults.getValue() : devices.getValue();
         if (allDevices == null)
             return null;
 
         switch (filter) {
             case "active":
-                return repository.getActiveDevices();
             case "inactive":
-                List<Device> inactiveDevices = new java.util.ArrayList<>();
+                boolean wantActive = filter.equals("active");
+                List<Device> filtered = new ArrayList<>();
                 for (Device device : allDevices) {
-                    if (!device.isActive()) {
-                        inactiveDevices.add(device);
+                    if (device.isActive() == wantActive) {
+                        filtered.add(device);
                     }
                 }
-                return inactiveDevices;
+                return filtered;
             default:
                 return allDevices;
         }
@@ -61,6 +116,14 @@ public class DevicesViewModel extends ViewModel {
         return devices;
     }
 
+    public LiveData<List<Device>> getRoomDevices(String roomName) {
+        return repository.getRoomDevices(roomName);
+    }
+
+    public LiveData<Room> getRoomSummary(String roomName) {
+        return repository.getRoomSummary(roomName);
+    }
+
 
     private final MutableLiveData<List<Device>> searchResults = new MutableLiveData<>();
 
@@ -68,8 +131,70 @@ public class DevicesViewModel extends ViewModel {
         return searchResults;
     }
 
-    public void setSearchResults(List<Device> results) {
-        searchResults.setValue(results);
+    // Matches name, room and type by prefix, tolerating small typos. Results
+    // arrive on getSearchResults once typing pauses; an empty query ends the
+    // search.
+    public void setSearchQuery(String query) {
+        searchQuery = query != null ? query.trim() : "";
+        if (!searchQuery.isEmpty()) {
+            attachSearchIndex();
+        }
+        if (pendingSearch != null) {
+            pendingSearch.cancel(false);
+            pendingSearch = null;
+        }
+        if (searchQuery.isEmpty()) {
+            searchResults.setValue(null);
+            return;
+        }
+        pendingSearch = SEARCH_EXECUTOR.schedule(this::runSearch, SEARCH_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isSearching() {
+        return !searchQuery.isEmpty();
+    }
+
+    // Built on the first search, then kept in step with the store
+    private void attachSearchIndex() {
+        if (searchIndexAttached) {
+            return;
+        }
+        searchIndexAttached = true;
+        List<Device> initial = repository.getAllDevices();
+        SEARCH_EXECUTOR.execute(() -> {
+            for (Device device : initial) {
+                searchIndex.put(device);
+            }
+        });
+        repository.getDeviceSnapshots().observeForever(indexUpdater);
+    }
+
+    // On SEARCH_EXECUTOR. Results for a query the user has since changed
+    // are dropped.
+    private void runSearch() {
+        String query = searchQuery;
+        if (query.isEmpty()) {
+            return;
+        }
+        List<Device> results = searchIndex.search(query, MAX_SEARCH_RESULTS);
+        if (query.equals(searchQuery)) {
+            Set<String> ids = new HashSet<>();
+            for (Device device : results) {
+                ids.add(device.getId());
+            }
+            resultIds = ids;
+            searchResults.postValue(results);
+        }
+    }
+
+    @Override
+    protected void onCleared() {
+        if (searchIndexAttached) {
+            repository.getDeviceSnapshots().removeObserver(indexUpdater);
+        }
+        if (pendingSearch != null) {
+            pendingSearch.cancel(false);
+        }
     }
 
 }
@@ -13,6 +13,7 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import com.example.homie.MainActivity;
 import com.example.homie.R;
+import java.util.List;
 
 public class HomeFragment extends Fragment {
 
@@ -25,6 +26,7 @@ public class HomeFragment extends Fragment {
     private TextView mainTemperatureLabel;
     private TextView mainTemperatureValue;
     private TextView mainTemperatureStatus;
+    private TemperatureTrendView mainTemperatureTrend;
     private TextView noTemperatureMessage;
 
     // Connection indicators — exactly matching XML IDs
@@ -33,7 +35,8 @@ public class HomeFragment extends Fragment {
 
     public View onCreateView(@NonNull LayoutInflater inflater,
             ViewGroup container, Bundle savedInstanceState) {
-        homeViewModel = new ViewModelProvider(this).get(HomeViewModel.class);
+        // Shared with MainActivity, which feeds it the ESP32 devices and connection state
+        homeViewModel = new ViewModelProvider(requireActivity()).get(HomeViewModel.class);
 
         View root = inflater.inflate(R.layout.fragment_home, container, false);
 
@@ -56,6 +59,7 @@ public class HomeFragment extends Fragment {
         mainTemperatureLabel = root.findViewById(R.id.main_temperature_label);
         mainTemperatureValue = root.findViewById(R.id.main_temperature_value);
         mainTemperatureStatus = root.findViewById(R.id.main_temperature_status);
+        mainTemperatureTrend = root.findViewById(R.id.main_temperature_trend);
         noTemperatureMessage = root.findViewById(R.id.no_temperature_message);
 
         // Connection indicators — MUST MATCH XML IDs
@@ -78,7 +82,14 @@ public class HomeFragment extends Fragment {
     private void setupQuickActions(View root) {
         View allLightsAction = root.findViewById(R.id.quick_action_all_lights);
         if (allLightsAction != null) {
-            allLightsAction.setOnClickListener(v -> homeViewModel.toggleAllLights());
+            allLightsAction.setOnClickListener(v -> {
+                if (getActivity() instanceof MainActivity) {
+                    // Any light on means the tap turns them all off
+                    List<String> lightIds = homeViewModel.getLightDeviceIds();
+                    boolean lightsOn = !homeViewModel.isAnyActive(lightIds);
+                    ((MainActivity) getActivity()).setDevicesState(lightIds, lightsOn);
+                }
+            });
         }
 
         View climateAction = root.findViewById(R.id.quick_action_climate);
@@ -123,6 +134,13 @@ public class HomeFragment extends Fragment {
             }
         });
 
+        // Recent readings of the sensor the card shows
+        homeViewModel.getTemperatureTrend().observe(getViewLifecycleOwner(), trend -> {
+            if (mainTemperatureTrend != null) {
+                mainTemperatureTrend.setSamples(trend);
+            }
+        });
+
         // WiFi Network Indicator (Android Wi-Fi)
         homeViewModel.getWifiConnected().observe(getViewLifecycleOwner(), connected -> {
             if (wifiIndicator != null) {
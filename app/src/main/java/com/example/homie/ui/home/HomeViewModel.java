@@ -4,32 +4,37 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 import com.example.homie.model.Device;
+import com.example.homie.repository.HomeStateStore;
+import com.example.homie.services.SensorHistory;
+import com.example.homie.services.TimeSeriesBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 public class HomeViewModel extends ViewModel {
+    // Roughly what the climate card can draw across its width
+    private static final int TREND_MAX_POINTS = 120;
 
     private final MutableLiveData<String> mText;
-    private final MutableLiveData<Boolean> allLightsState;
     private final MutableLiveData<Boolean> securityState;
     private final MutableLiveData<Float> currentTemperature;
     private final MutableLiveData<Float> currentHumidity;
-    private final MutableLiveData<List<Device>> esp32Devices;
     private final MutableLiveData<Boolean> wifiConnected; // Android Wi-Fi network state
     private final MutableLiveData<Boolean> webSocketConnected; // ESP32 WebSocket connection state
+    private final MutableLiveData<TimeSeriesBuffer.Samples> temperatureTrend;
+    private SensorHistory sensorHistory;
+    private String trendSensorId;
 
     public HomeViewModel() {
         mText = new MutableLiveData<>();
-        allLightsState = new MutableLiveData<>();
         securityState = new MutableLiveData<>();
         currentTemperature = new MutableLiveData<>();
         currentHumidity = new MutableLiveData<>();
-        esp32Devices = new MutableLiveData<>();
         wifiConnected = new MutableLiveData<>();
         webSocketConnected = new MutableLiveData<>();
+        temperatureTrend = new MutableLiveData<>();
 
         mText.setValue("Welcome Home");
-        allLightsState.setValue(false);
         securityState.setValue(true);
         currentTemperature.setValue(22.0f);
         currentHumidity.setValue(50.0f);
@@ -41,10 +46,6 @@ public class HomeViewModel extends ViewModel {
         return mText;
     }
 
-    public LiveData<Boolean> getAllLightsState() {
-        return allLightsState;
-    }
-
     public LiveData<Boolean> getSecurityState() {
         return securityState;
     }
@@ -58,7 +59,7 @@ public class HomeViewModel extends ViewModel {
     }
 
     public LiveData<List<Device>> getESP32Devices() {
-        return esp32Devices;
+        return HomeStateStore.getInstance().getDevices();
     }
 
     // ===== WiFi Network Connection (Android Wi-Fi) =====
@@ -79,9 +80,30 @@ public class HomeViewModel extends ViewModel {
         webSocketConnected.setValue(connected);
     }
 
-    public void toggleAllLights() {
-        Boolean currentState = allLightsState.getValue();
-        allLightsState.setValue(currentState != null ? !currentState : true);
+    // Whether any of the devices is on right now, read from the store so
+    // the all-lights action follows the real lights
+    public boolean isAnyActive(List<String> deviceIds) {
+        HomeStateStore store = HomeStateStore.getInstance();
+        for (String id : deviceIds) {
+            Device device = store.get(id);
+            if (device != null && device.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<String> getLightDeviceIds() {
+        List<String> ids = new ArrayList<>();
+        List<Device> devices = HomeStateStore.getInstance().getDevices().getValue();
+        if (devices != null) {
+            for (Device device : devices) {
+                if (device.isLight()) {
+                    ids.add(device.getId());
+                }
+            }
+        }
+        return ids;
     }
 
     public void toggleSecurity() {
@@ -96,10 +118,33 @@ public class HomeViewModel extends ViewModel {
         if (tempData.containsKey("humidity")) {
             currentHumidity.setValue(tempData.get("humidity"));
         }
+        if (sensorHistory != null) {
+            // Every sensor's last reading, in the order they first reported
+            if (trendSensorId == null && !tempData.isEmpty()) {
+                trendSensorId = tempData.keySet().iterator().next();
+            }
+            if (trendSensorId != null && tempData.containsKey(trendSensorId)) {
+                temperatureTrend.setValue(getTemperatureTrend(trendSensorId, TREND_MAX_POINTS));
+            }
+        }
     }
 
-    public void updateDevicesFromESP32(List<Device> devices) {
-        esp32Devices.setValue(devices);
+    // ===== Temperature history (kept by WebSocketService) =====
+    public void setSensorHistory(SensorHistory history) {
+        sensorHistory = history;
+    }
+
+    // Trend of the first sensor that reported, refreshed with each reading
+    public LiveData<TimeSeriesBuffer.Samples> getTemperatureTrend() {
+        return temperatureTrend;
+    }
+
+    // Last SensorHistory.HISTORY_WINDOW_MS of readings, at most maxPoints
+    public TimeSeriesBuffer.Samples getTemperatureTrend(String sensorId, int maxPoints) {
+        if (sensorHistory == null) {
+            return null;
+        }
+        return sensorHistory.query(sensorId, SensorHistory.HISTORY_WINDOW_MS, maxPoints);
     }
 
     public String getTemperatureStatus() {
@@ -0,0 +1,68 @@
+package com.example.homie.ui.home;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+import com.example.homie.R;
+import com.example.homie.services.TimeSeriesBuffer;
+
+// Sparkline of a sensor's recent readings for the climate card. The samples
+// arrive already downsampled to about one per pixel column, so drawing is a
+// single path.
+public class TemperatureTrendView extends View {
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path path = new Path();
+    private TimeSeriesBuffer.Samples samples;
+
+    public TemperatureTrendView(Context context) {
+        this(context, null);
+    }
+
+    public TemperatureTrendView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(2 * getResources().getDisplayMetrics().density);
+        linePaint.setColor(getResources().getColor(R.color.primary, null));
+    }
+
+    public void setSamples(TimeSeriesBuffer.Samples samples) {
+        this.samples = samples;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (samples == null || samples.size < 2) {
+            return;
+        }
+        float min = samples.values[0];
+        float max = samples.values[0];
+        for (int i = 1; i < samples.size; i++) {
+            min = Math.min(min, samples.values[i]);
+            max = Math.max(max, samples.values[i]);
+        }
+        float range = max - min;
+        long start = samples.times[0];
+        long span = Math.max(1, samples.times[samples.size - 1] - start);
+        float inset = linePaint.getStrokeWidth();
+        float width = getWidth() - 2 * inset;
+        float height = getHeight() - 2 * inset;
+
+        path.rewind();
+        for (int i = 0; i < samples.size; i++) {
+            float x = inset + width * (samples.times[i] - start) / span;
+            // A flat reading draws mid-height
+            float y = inset + (range > 0 ? height * (max - samples.values[i]) / range : height / 2);
+            if (i == 0) {
+                path.moveTo(x, y);
+            } else {
+                path.lineTo(x, y);
+            }
+        }
+        canvas.drawPath(path, linePaint);
+    }
+}
@@ -12,7 +12,6 @@ import com.example.homie.adapter.DeviceAdapter;
 import com.example.homie.model.Device;
 import com.example.homie.ui.devices.DevicesViewModel;
 import java.util.ArrayList;
-import java.util.List;
 
 public class RoomDetailActivity extends AppCompatActivity implements DeviceAdapter.OnDeviceClickListener {
 
@@ -70,31 +69,21 @@ public class RoomDetailActivity extends AppCompatActivity implements DeviceAdapt
     private void setupViewModel() {
         devicesViewModel = new ViewModelProvider(this).get(DevicesViewModel.class);
 
-        // Get all devices and filter by room
-        devicesViewModel.getAllDevices().observe(this, allDevices -> {
-            if (allDevices != null && roomName != null) {
-                List<Device> roomDevices = new ArrayList<>();
-                for (Device device : allDevices) {
-                    // Match by room name instead of roomId since devices use room names
-                    if (roomName.equals(device.getRoom())) {
-                        roomDevices.add(device);
-                    }
-                }
+        if (roomName == null) {
+            return;
+        }
+        // Devices are matched to rooms by name, not roomId; both views only
+        // update when a device in this room changes
+        devicesViewModel.getRoomDevices(roomName).observe(this, roomDevices -> {
+            if (roomDevices != null) {
                 deviceAdapter.updateDevices(roomDevices);
-                roomInfoText.setText(roomDevices.size() + " devices • " +
-                        countActiveDevices(roomDevices) + " active");
             }
         });
-    }
-
-    private int countActiveDevices(List<Device> devices) {
-        int count = 0;
-        for (Device device : devices) {
-            if (device.isActive()) {
-                count++;
+        devicesViewModel.getRoomSummary(roomName).observe(this, room -> {
+            if (room != null) {
+                roomInfoText.setText(room.getStatusText());
             }
-        }
-        return count;
+        });
     }
 
     @Override
@@ -0,0 +1,252 @@
+package com.example.homie.utils;
+
+import com.example.homie.model.Device;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Field names match what reflective Gson wrote, so stored devices still load.
+// The same adapter reads the hub's device objects, which use a subset of them.
+// Unknown fields are skipped and nulls leave the constructor default.
+class DeviceTypeAdapter extends TypeAdapter<Device> {
+
+    @Override
+    public void write(JsonWriter out, Device device) throws IOException {
+        out.beginObject();
+        writeString(out, "id", device.getId());
+        writeString(out, "name", device.getName());
+        writeString(out, "type", device.getType());
+        writeString(out, "room", device.getRoom());
+        writeString(out, "roomId", device.getRoomId());
+        out.name("isActive").value(device.isActive());
+        out.name("iconResource").value(device.getIconResource());
+        writeString(out, "status", device.getStatus());
+        Double temperature = device.getTemperature();
+        if (temperature != null && !temperature.isNaN() && !temperature.isInfinite()) {
+            out.name("temperature").value(device.getTemperature());
+        }
+        out.name("pin").value(device.getPin());
+        out.name("lastUpdate").value(device.getLastUpdate());
+        out.name("isOnline").value(device.isOnline());
+        out.name("brightness").value(device.getBrightness());
+        out.name("speed").value(device.getSpeed());
+        out.name("volume").value(device.getVolume());
+        writeString(out, "mqttTopic", device.getMqttTopic());
+        out.name("isESP32Controlled").value(device.isESP32Controlled());
+        writeString(out, "esp32DeviceId", device.getEsp32DeviceId());
+        if (device.needsESP32Sync()) {
+            out.name("needsSync").value(true);
+        }
+        if (device.getLastESP32SyncTime() > 0) {
+            out.name("lastSyncTime").value(device.getLastESP32SyncTime());
+        }
+        if (device.getEsp32Properties() != null) {
+            out.name("esp32Properties");
+            writeProperties(out, device.getEsp32Properties());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Device read(JsonReader in) throws IOException {
+        String id = null;
+        String name = null;
+        String type = null;
+        String room = null;
+        String roomId = null;
+        boolean isActive = false;
+        Integer iconResource = null;
+        String status = null;
+        Double temperature = null;
+        Integer pin = null;
+        Long lastUpdate = null;
+        Boolean isOnline = null;
+        Float brightness = null;
+        Integer speed = null;
+        Integer volume = null;
+        String mqttTopic = null;
+        boolean isESP32Controlled = false;
+        String esp32DeviceId = null;
+        boolean needsSync = false;
+        long lastSyncTime = 0;
+        Map<String, Object> esp32Properties = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String field = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "id":
+                    id = in.nextString();
+                    break;
+                case "name":
+                    name = in.nextString();
+                    break;
+                case "type":
+                    type = in.nextString();
+                    break;
+                case "room":
+                    room = in.nextString();
+                    break;
+                case "roomId":
+                    roomId = in.nextString();
+                    break;
+                case "isActive":
+                    isActive = in.nextBoolean();
+                    break;
+                case "iconResource":
+                    iconResource = in.nextInt();
+                    break;
+                case "status":
+                    status = in.nextString();
+                    break;
+                case "temperature":
+                    temperature = in.nextDouble();
+                    break;
+                case "pin":
+                    pin = in.nextInt();
+                    break;
+                case "lastUpdate":
+                    lastUpdate = in.nextLong();
+                    break;
+                case "isOnline":
+                    isOnline = in.nextBoolean();
+                    break;
+                case "brightness":
+                    brightness = (float) in.nextDouble();
+                    break;
+                case "speed":
+                    speed = in.nextInt();
+                    break;
+                case "volume":
+                    volume = in.nextInt();
+                    break;
+                case "mqttTopic":
+                    mqttTopic = in.nextString();
+                    break;
+                case "isESP32Controlled":
+                    isESP32Controlled = in.nextBoolean();
+                    break;
+                case "esp32DeviceId":
+                    esp32DeviceId = in.nextString();
+                    break;
+                case "needsSync":
+                    needsSync = in.nextBoolean();
+                    break;
+                case "lastSyncTime":
+                    lastSyncTime = (long) in.nextDouble();
+                    break;
+                case "esp32Properties":
+                    esp32Properties = readProperties(in);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+
+        if (id == null)
+            return null;
+
+        // Setters with side effects (status, MQTT topic) run first so stored
+        // values win over the derived ones
+        Device device = new Device(id, name, type, room, isActive);
+        device.setESP32Controlled(isESP32Controlled);
+        device.setEsp32DeviceId(esp32DeviceId);
+        if (mqttTopic != null)
+            device.setMqttTopic(mqttTopic);
+        if (roomId != null)
+            device.setRoomId(roomId);
+        if (status != null)
+            device.setStatus(status);
+        if (iconResource != null)
+            device.setIconResource(iconResource);
+        device.setTemperature(temperature);
+        if (pin != null)
+            device.setPin(pin);
+        if (isOnline != null)
+            device.setOnline(isOnline);
+        if (brightness != null)
+            device.setBrightness(brightness);
+        if (speed != null)
+            device.setSpeed(speed);
+        if (volume != null)
+            device.setVolume(volume);
+        // Older records keep sync state inside esp32Properties; the setter
+        // moves it to the typed fields
+        if (esp32Properties != null)
+            device.setEsp32Properties(esp32Properties);
+        if (needsSync)
+            device.setNeedsESP32Sync(true);
+        if (lastSyncTime > 0)
+            device.setLastESP32SyncTime(lastSyncTime);
+        if (lastUpdate != null && lastUpdate >= 0)
+            device.setLastUpdate(lastUpdate);
+        return device;
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static void writeProperties(JsonWriter out, Map<String, Object> properties) throws IOException {
+        out.beginObject();
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            out.name(entry.getKey());
+            if (value instanceof Boolean) {
+                out.value((Boolean) value);
+            } else if (value instanceof Number) {
+                out.value((Number) value);
+            } else {
+                out.value(value.toString());
+            }
+        }
+        out.endObject();
+    }
+
+    // Whole numbers come back as Long (timestamps), others as Double, rather
+    // than everything as Double the way reflective Gson reads Object values
+    private static Map<String, Object> readProperties(JsonReader in) throws IOException {
+        Map<String, Object> properties = new HashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            switch (in.peek()) {
+                case BOOLEAN:
+                    properties.put(key, in.nextBoolean());
+                    break;
+                case NUMBER: {
+                    String number = in.nextString();
+                    try {
+                        properties.put(key, Long.parseLong(number));
+                    } catch (NumberFormatException e) {
+                        properties.put(key, Double.parseDouble(number));
+                    }
+                    break;
+                }
+                case STRING:
+                    properties.put(key, in.nextString());
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return properties;
+    }
+}
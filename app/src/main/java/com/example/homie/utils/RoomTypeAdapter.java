@@ -0,0 +1,71 @@
+package com.example.homie.utils;
+
+import com.example.homie.model.Room;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+// Same field names reflective Gson used for stored rooms
+class RoomTypeAdapter extends TypeAdapter<Room> {
+
+    @Override
+    public void write(JsonWriter out, Room room) throws IOException {
+        out.beginObject();
+        if (room.getId() != null) {
+            out.name("id").value(room.getId());
+        }
+        if (room.getName() != null) {
+            out.name("name").value(room.getName());
+        }
+        out.name("deviceCount").value(room.getDeviceCount());
+        out.name("activeDeviceCount").value(room.getActiveDeviceCount());
+        out.name("iconResource").value(room.getIconResource());
+        out.endObject();
+    }
+
+    @Override
+    public Room read(JsonReader in) throws IOException {
+        String id = null;
+        String name = null;
+        int deviceCount = 0;
+        int activeDeviceCount = 0;
+        int iconResource = 0;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String field = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "id":
+                    id = in.nextString();
+                    break;
+                case "name":
+                    name = in.nextString();
+                    break;
+                case "deviceCount":
+                    deviceCount = in.nextInt();
+                    break;
+                case "activeDeviceCount":
+                    activeDeviceCount = in.nextInt();
+                    break;
+                case "iconResource":
+                    iconResource = in.nextInt();
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+
+        Room room = new Room(id, name, iconResource);
+        room.setDeviceCount(deviceCount);
+        room.setActiveDeviceCount(activeDeviceCount);
+        return room;
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.homie.voice;
+
+import com.example.homie.model.Device;
+import com.example.homie.model.DeviceType;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Word trie over the names of the devices and rooms the app knows about, so
+// an utterance can be matched against every name at once instead of trying
+// each name in turn. Kept in step with the store one device at a time. Not
+// thread-safe; VoiceCommandManager uses it on the main thread.
+final class DeviceNameIndex {
+
+    static final class Match {
+        final int length;
+        final Set<String> deviceIds;
+        final String room;
+        // Some longer name starts with this one, so another word could
+        // still change what it refers to
+        final boolean extendable;
+
+        Match(int length, Set<String> deviceIds, String room, boolean extendable) {
+            this.length = length;
+            this.deviceIds = deviceIds;
+            this.room = room;
+            this.extendable = extendable;
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        final Set<String> deviceIds = new LinkedHashSet<>();
+        // Devices and catalogue entries naming this room
+        int roomRefs;
+        String room;
+    }
+
+    private static final class Entry {
+        final String name;
+        final String room;
+        final DeviceType type;
+
+        Entry(Device device) {
+            name = device.getName();
+            room = device.getRoom();
+            type = device.getDeviceType();
+        }
+
+        boolean sameAs(Device device) {
+            return Objects.equals(name, device.getName())
+                    && Objects.equals(room, device.getRoom())
+                    && type == device.getDeviceType();
+        }
+    }
+
+    private final Node root = new Node();
+    private final Map<String, Entry> devices = new HashMap<>();
+    private final Map<String, Set<String>> idsByRoom = new HashMap<>();
+    private final Map<DeviceType, Set<String>> idsByType = new EnumMap<>(DeviceType.class);
+    private final Set<String> catalogueRooms = new LinkedHashSet<>();
+
+    // Renames and moves re-index the device; other changes are ignored
+    void put(Device device) {
+        String id = device.getId();
+        Entry current = devices.get(id);
+        if (current != null) {
+            if (current.sameAs(device)) {
+                return;
+            }
+            remove(id);
+        }
+        Entry entry = new Entry(device);
+        devices.put(id, entry);
+        Node named = entry.name != null ? nodeFor(entry.name, true) : null;
+        if (named != null) {
+            named.deviceIds.add(id);
+        }
+        if (entry.room != null) {
+            addRoomRef(entry.room);
+            addTo(idsByRoom, entry.room, id);
+        }
+        Set<String> ofType = idsByType.get(entry.type);
+        if (ofType == null) {
+            ofType = new LinkedHashSet<>();
+            idsByType.put(entry.type, ofType);
+        }
+        ofType.add(id);
+    }
+
+    void remove(String id) {
+        Entry entry = devices.remove(id);
+        if (entry == null) {
+            return;
+        }
+        if (entry.name != null) {
+            Node node = nodeFor(entry.name, false);
+            if (node != null) {
+                node.deviceIds.remove(id);
+            }
+        }
+        if (entry.room != null) {
+            removeRoomRef(entry.room);
+            Set<String> inRoom = idsByRoom.get(entry.room);
+            if (inRoom != null) {
+                inRoom.remove(id);
+                if (inRoom.isEmpty()) {
+                    idsByRoom.remove(entry.room);
+                }
+            }
+        }
+        Set<String> ofType = idsByType.get(entry.type);
+        if (ofType != null) {
+            ofType.remove(id);
+        }
+    }
+
+    // Rooms from the catalogue are matchable even while empty
+    void setRooms(Collection<String> names) {
+        for (String name : catalogueRooms) {
+            removeRoomRef(name);
+        }
+        catalogueRooms.clear();
+        for (String name : names) {
+            if (name != null && catalogueRooms.add(name)) {
+                addRoomRef(name);
+            }
+        }
+    }
+
+    // Longest device or room name starting at tokens[start], or null.
+    // A plural word also matches its singular, so "kitchen lights" finds
+    // "Kitchen Light".
+    Match longestMatch(List<String> tokens, int start) {
+        Node node = root;
+        Match best = null;
+        for (int i = start; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            Node next = node.children.get(token);
+            if (next == null && token.length() > 1 && token.endsWith("s")) {
+                next = node.children.get(token.substring(0, token.length() - 1));
+            }
+            if (next == null) {
+                break;
+            }
+            node = next;
+            if (!node.deviceIds.isEmpty() || node.room != null) {
+                best = new Match(i - start + 1, node.deviceIds, node.room, !node.children.isEmpty());
+            }
+        }
+        return best;
+    }
+
+    Set<String> idsInRoom(String room) {
+        Set<String> ids = idsByRoom.get(room);
+        return ids != null ? ids : Collections.<String>emptySet();
+    }
+
+    Set<String> idsOfType(DeviceType type) {
+        Set<String> ids = idsByType.get(type);
+        return ids != null ? ids : Collections.<String>emptySet();
+    }
+
+    Set<String> allIds() {
+        return devices.keySet();
+    }
+
+    DeviceType typeOf(String id) {
+        Entry entry = devices.get(id);
+        return entry != null ? entry.type : null;
+    }
+
+    private void addRoomRef(String room) {
+        Node node = nodeFor(room, true);
+        if (node != null) {
+            node.roomRefs++;
+            node.room = room;
+        }
+    }
+
+    private void removeRoomRef(String room) {
+        Node node = nodeFor(room, false);
+        if (node != null && node.roomRefs > 0 && --node.roomRefs == 0) {
+            node.room = null;
+        }
+    }
+
+    private Node nodeFor(String name, boolean create) {
+        Node node = root;
+        for (String token : VoiceGrammar.tokenize(name)) {
+            Node next = node.children.get(token);
+            if (next == null) {
+                if (!create) {
+                    return null;
+                }
+                next = new Node();
+                node.children.put(token, next);
+            }
+            node = next;
+        }
+        return node == root ? null : node;
+    }
+
+    private static void addTo(Map<String, Set<String>> index, String key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids == null) {
+            ids = new LinkedHashSet<>();
+            index.put(key, ids);
+        }
+        ids.add(id);
+    }
+}
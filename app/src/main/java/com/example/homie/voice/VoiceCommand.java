@@ -0,0 +1,95 @@
+package com.example.homie.voice;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+// An utterance resolved to an action on concrete devices
+public final class VoiceCommand {
+
+    public enum Action {
+        TURN_ON,
+        TURN_OFF,
+        TOGGLE,
+        SET,
+        INCREASE,
+        DECREASE
+    }
+
+    public enum Property {
+        POWER,
+        BRIGHTNESS,
+        TEMPERATURE,
+        VOLUME,
+        SPEED
+    }
+
+    private final String text;
+    private final Action action;
+    private final Property property;
+    private final Integer value;
+    private final List<String> deviceIds;
+    // Share of the utterance's words the grammar or a name accounted for
+    private final float coverage;
+    // Whether a device or room was named, rather than implied by a type
+    private final boolean explicitTarget;
+    // Whether more words could not narrow or change the devices: only
+    // devices were named, and the last name can't grow into a longer one
+    private final boolean settled;
+
+    VoiceCommand(String text, Action action, Property property, Integer value, List<String> deviceIds,
+            float coverage, boolean explicitTarget, boolean settled) {
+        this.text = text;
+        this.action = action;
+        this.property = property;
+        this.value = value;
+        this.deviceIds = Collections.unmodifiableList(deviceIds);
+        this.coverage = coverage;
+        this.explicitTarget = explicitTarget;
+        this.settled = settled;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public Property getProperty() {
+        return property;
+    }
+
+    // Spoken number, or null if the command didn't include one
+    public Integer getValue() {
+        return value;
+    }
+
+    public List<String> getDeviceIds() {
+        return deviceIds;
+    }
+
+    float getCoverage() {
+        return coverage;
+    }
+
+    boolean hasExplicitTarget() {
+        return explicitTarget;
+    }
+
+    boolean isSettled() {
+        return settled;
+    }
+
+    // Same effect on the same devices, whatever words produced it
+    boolean sameAs(VoiceCommand other) {
+        return other != null && action == other.action && property == other.property
+                && Objects.equals(value, other.value) && deviceIds.equals(other.deviceIds);
+    }
+
+    @Override
+    public String toString() {
+        return action + " " + property + (value != null ? " " + value : "") + " -> " + deviceIds;
+    }
+}
@@ -7,21 +7,65 @@ import android.speech.RecognitionListener;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 import android.util.Log;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Observer;
+import com.example.homie.model.Device;
+import com.example.homie.model.DeviceControl;
+import com.example.homie.model.Room;
+import com.example.homie.repository.DeviceSnapshot;
+import com.example.homie.repository.HomeStateStore;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class VoiceCommandManager implements RecognitionListener {
     private static final String TAG = "VoiceCommandManager";
 
+    // Step for "turn it up" and friends when no number is given
+    private static final int BRIGHTNESS_STEP = 10;
+    private static final int VOLUME_STEP = 10;
+    private static final int SPEED_STEP = 1;
+
     private Context context;
     private SpeechRecognizer speechRecognizer;
     private Intent recognizerIntent;
     private VoiceCommandListener listener;
     private boolean isListening = false;
+    // Partial-result state for the current utterance
+    private VoiceCommand lastPartial;
+    private VoiceCommand dispatchedEarly;
+    // Power state of each early-dispatched device before the dispatch
+    private final Map<String, Boolean> stateBeforeEarly = new HashMap<>();
+
+    private final HomeStateStore store = HomeStateStore.getInstance();
+    private final DeviceNameIndex nameIndex = new DeviceNameIndex();
+    private final VoiceCommandParser parser = new VoiceCommandParser(nameIndex);
+    // Keep the name index in step with the store, one changed device at a time
+    private final Observer<DeviceSnapshot> deviceObserver = snapshot -> {
+        for (String id : snapshot.getChangedIds()) {
+            Device device = store.get(id);
+            if (device != null) {
+                nameIndex.put(device);
+            } else {
+                nameIndex.remove(id);
+            }
+        }
+    };
+    private final Observer<List<Room>> roomObserver = rooms -> {
+        List<String> names = new ArrayList<>(rooms.size());
+        for (Room room : rooms) {
+            names.add(room.getName());
+        }
+        nameIndex.setRooms(names);
+    };
 
     public interface VoiceCommandListener {
         void onCommandRecognized(String command);
 
+        void onCommandExecuted(VoiceCommand command);
+
         void onListeningStateChanged(boolean isListening);
 
         void onError(String error);
@@ -30,6 +74,12 @@ public class VoiceCommandManager implements RecognitionListener {
     public VoiceCommandManager(Context context) {
         this.context = context;
         initializeSpeechRecognizer();
+        for (Device device : store.getAll()) {
+            nameIndex.put(device);
+        }
+        roomObserver.onChanged(store.getRoomList());
+        store.getDeviceSnapshots().observeForever(deviceObserver);
+        store.getRooms().observeForever(roomObserver);
     }
 
     private void initializeSpeechRecognizer() {
@@ -55,6 +105,9 @@ public class VoiceCommandManager implements RecognitionListener {
     public void startListening() {
         if (speechRecognizer != null && !isListening) {
             try {
+                lastPartial = null;
+                dispatchedEarly = null;
+                stateBeforeEarly.clear();
                 speechRecognizer.startListening(recognizerIntent);
                 isListening = true;
                 if (listener != null) {
@@ -86,6 +139,8 @@ public class VoiceCommandManager implements RecognitionListener {
     }
 
     public void destroy() {
+        store.getDeviceSnapshots().removeObserver(deviceObserver);
+        store.getRooms().removeObserver(roomObserver);
         if (speechRecognizer != null) {
             speechRecognizer.destroy();
             speechRecognizer = null;
@@ -136,27 +191,62 @@ public class VoiceCommandManager implements RecognitionListener {
     public void onResults(Bundle results) {
         ArrayList<String> matches = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
         if (matches != null && !matches.isEmpty()) {
-            String command = matches.get(0).toLowerCase().trim();
-            Log.d(TAG, "Voice command recognized: " + command);
+            float[] confidences = results.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES);
+            VoiceCommand best = parser.parseBest(matches, confidences);
+            String command = (best != null ? best.getText() : matches.get(0)).toLowerCase().trim();
+            Log.d(TAG, "Voice command recognized: " + command + " (of " + matches.size() + " hypotheses)");
 
             if (listener != null) {
                 listener.onCommandRecognized(command);
             }
 
-            processVoiceCommand(command);
+            if (best != null && best.sameAs(dispatchedEarly)) {
+                Log.d(TAG, "Already dispatched from a partial result: " + best);
+            } else {
+                undoEarlyDispatch(best);
+                processVoiceCommand(command, best);
+            }
+        } else {
+            undoEarlyDispatch(null);
         }
+        lastPartial = null;
+        dispatchedEarly = null;
+        stateBeforeEarly.clear();
         isListening = false;
         if (listener != null) {
             listener.onListeningStateChanged(false);
         }
     }
 
+    // A partial result is dispatched before end of speech once two partials
+    // in a row agree on a power command for named devices that more words
+    // can't change. Rooms wait, since "turn on the kitchen" may yet end in
+    // "lights"; so do toggles and values: a toggle can't be safely repeated,
+    // and "twenty" may still become "twenty five".
     @Override
     public void onPartialResults(Bundle partialResults) {
         ArrayList<String> matches = partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
-        if (matches != null && !matches.isEmpty()) {
-            Log.d(TAG, "Partial result: " + matches.get(0));
+        if (matches == null || matches.isEmpty() || dispatchedEarly != null) {
+            return;
+        }
+        Log.d(TAG, "Partial result: " + matches.get(0));
+        VoiceCommand partial = parser.parseBest(matches,
+                partialResults.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES));
+        if (partial != null && partial.isSettled()
+                && (partial.getAction() == VoiceCommand.Action.TURN_ON
+                        || partial.getAction() == VoiceCommand.Action.TURN_OFF)
+                && partial.sameAs(lastPartial)) {
+            Log.d(TAG, "Dispatching stable partial result: " + partial);
+            dispatchedEarly = partial;
+            for (String deviceId : partial.getDeviceIds()) {
+                Device current = store.get(deviceId);
+                if (current != null) {
+                    stateBeforeEarly.put(deviceId, current.isActive());
+                }
+            }
+            dispatch(partial);
         }
+        lastPartial = partial;
     }
 
     @Override
@@ -164,103 +254,136 @@ public class VoiceCommandManager implements RecognitionListener {
         // Handle recognition events
     }
 
-    private void processVoiceCommand(String command) {
-        // Process the recognized voice command
-        if (command.contains("turn on") || command.contains("turn off")) {
-            handleDeviceToggle(command);
-        } else if (command.contains("set temperature") || command.contains("temperature")) {
-            handleTemperatureControl(command);
-        } else if (command.contains("brightness") || command.contains("dim") || command.contains("bright")) {
-            handleBrightnessControl(command);
-        } else if (command.contains("volume")) {
-            handleVolumeControl(command);
-        } else {
-            Log.d(TAG, "Unrecognized command: " + command);
+    // The final result disagrees with what was dispatched early: devices it
+    // no longer targets go back to how they were. A null final command
+    // targets nothing, so every early change is undone.
+    private void undoEarlyDispatch(VoiceCommand finalCommand) {
+        if (dispatchedEarly == null) {
+            return;
+        }
+        for (Map.Entry<String, Boolean> entry : stateBeforeEarly.entrySet()) {
+            if (finalCommand == null || !finalCommand.getDeviceIds().contains(entry.getKey())) {
+                Log.d(TAG, "Final result no longer targets " + entry.getKey() + ", restoring it");
+                store.requestDeviceState(entry.getKey(), entry.getValue());
+            }
         }
     }
 
-    private void handleDeviceToggle(String command) {
-        boolean turnOn = command.contains("turn on");
-        String deviceName = extractDeviceName(command);
-
-        Log.d(TAG, "Device toggle - Device: " + deviceName + ", Turn on: " + turnOn);
-        // Here you would integrate with your smart home device control system
+    // Sends the parsed command straight to the store, which forwards it to
+    // the hub. Null means no hypothesis resolved to anything executable.
+    private void processVoiceCommand(String command, VoiceCommand parsed) {
+        if (parsed == null) {
+            Log.d(TAG, "Unrecognized command: " + command);
+            if (listener != null) {
+                listener.onError("Sorry, I didn't understand \"" + command + "\"");
+            }
+            return;
+        }
+        Log.d(TAG, "Voice command resolved: " + parsed);
+        dispatch(parsed);
     }
 
-    private void handleTemperatureControl(String command) {
-        String temperature = extractNumber(command);
-        String deviceName = extractDeviceName(command);
-
-        Log.d(TAG, "Temperature control - Device: " + deviceName + ", Temperature: " + temperature);
-        // Here you would integrate with your thermostat control system
+    private void dispatch(VoiceCommand command) {
+        // The hub has no set-point command, and Device.temperature is the
+        // sensor reading, so there is nothing honest to change
+        if (command.getProperty() == VoiceCommand.Property.TEMPERATURE) {
+            Log.d(TAG, "Temperature commands not supported: " + command);
+            if (listener != null) {
+                listener.onError("Setting the temperature isn't supported yet");
+            }
+            return;
+        }
+        switch (command.getAction()) {
+            case TURN_ON:
+                dispatchPower(command, true);
+                break;
+            case TURN_OFF:
+                dispatchPower(command, false);
+                break;
+            default:
+                for (String deviceId : command.getDeviceIds()) {
+                    execute(command, deviceId);
+                }
+                break;
+        }
+        if (listener != null) {
+            listener.onCommandExecuted(command);
+        }
     }
 
-    private void handleBrightnessControl(String command) {
-        String brightness = extractNumber(command);
-        String deviceName = extractDeviceName(command);
-
-        Log.d(TAG, "Brightness control - Device: " + deviceName + ", Brightness: " + brightness);
-        // Here you would integrate with your lighting control system
+    // "Turn off the kitchen" goes to the hub as one batch frame; devices
+    // that didn't switch are reverted by the store and reported here
+    private void dispatchPower(VoiceCommand command, boolean state) {
+        int total = command.getDeviceIds().size();
+        store.requestDevicesState(command.getDeviceIds(), state).thenAcceptAsync(failed -> {
+            if (!failed.isEmpty()) {
+                Log.w(TAG, "Hub did not switch " + failed + " for " + command);
+                if (listener != null) {
+                    listener.onError(failed.size() + " of " + total + " devices did not respond");
+                }
+            }
+        }, ContextCompat.getMainExecutor(context));
     }
 
-    private void handleVolumeControl(String command) {
-        String volume = extractNumber(command);
-        String deviceName = extractDeviceName(command);
-
-        Log.d(TAG, "Volume control - Device: " + deviceName + ", Volume: " + volume);
-        // Here you would integrate with your audio device control system
+    private void execute(VoiceCommand command, String deviceId) {
+        Device current = store.get(deviceId);
+        if (current == null) {
+            return;
+        }
+        switch (command.getAction()) {
+            case TOGGLE:
+                store.requestDeviceState(deviceId, !current.isActive());
+                return;
+            default:
+                DeviceControl control = controlFor(command.getProperty());
+                if (control != null) {
+                    store.requestLevel(deviceId, control, targetLevel(command, control, current), true);
+                }
+        }
     }
 
-    private String extractDeviceName(String command) {
-        // Simple device name extraction
-        if (command.contains("living room") || command.contains("living")) {
-            return "living room lights";
-        } else if (command.contains("bedroom")) {
-            return "bedroom lights";
-        } else if (command.contains("kitchen")) {
-            return "kitchen lights";
-        } else if (command.contains("thermostat") || command.contains("temperature")) {
-            return "thermostat";
-        } else if (command.contains("fan")) {
-            return "ceiling fan";
-        } else if (command.contains("tv") || command.contains("television")) {
-            return "tv";
-        } else if (command.contains("speaker") || command.contains("music")) {
-            return "speaker";
+    // The level to send: the spoken value, or the current one stepped by
+    // it, kept within the control's range
+    private static int targetLevel(VoiceCommand command, DeviceControl control, Device device) {
+        Integer value = command.getValue();
+        int step = value != null ? value : stepFor(control);
+        int level;
+        switch (command.getAction()) {
+            case SET:
+                level = step;
+                break;
+            case DECREASE:
+                level = control.get(device) - step;
+                break;
+            default:
+                level = control.get(device) + step;
+                break;
         }
-        return "unknown";
+        return Math.max(0, Math.min(control.getMax(), level));
     }
 
-    private String extractNumber(String command) {
-        // Extract numbers from the command
-        String[] words = command.split(" ");
-        for (String word : words) {
-            if (word.matches("\\d+")) {
-                return word;
-            }
+    private static DeviceControl controlFor(VoiceCommand.Property property) {
+        switch (property) {
+            case BRIGHTNESS:
+                return DeviceControl.BRIGHTNESS;
+            case VOLUME:
+                return DeviceControl.VOLUME;
+            case SPEED:
+                return DeviceControl.SPEED;
+            default:
+                return null;
         }
+    }
 
-        // Handle written numbers
-        if (command.contains("one"))
-            return "1";
-        if (command.contains("two"))
-            return "2";
-        if (command.contains("three"))
-            return "3";
-        if (command.contains("four"))
-            return "4";
-        if (command.contains("five"))
-            return "5";
-        if (command.contains("ten"))
-            return "10";
-        if (command.contains("twenty"))
-            return "20";
-        if (command.contains("fifty"))
-            return "50";
-        if (command.contains("hundred"))
-            return "100";
-
-        return "0";
+    private static int stepFor(DeviceControl control) {
+        switch (control) {
+            case BRIGHTNESS:
+                return BRIGHTNESS_STEP;
+            case VOLUME:
+                return VOLUME_STEP;
+            default:
+                return SPEED_STEP;
+        }
     }
 
     private String getErrorText(int errorCode) {
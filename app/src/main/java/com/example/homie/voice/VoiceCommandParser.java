@@ -0,0 +1,249 @@
+package com.example.homie.voice;
+
+import com.example.homie.model.DeviceType;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Resolves an utterance to a VoiceCommand in a single left-to-right pass.
+// At each word the longest device or room name wins; otherwise the word is
+// looked up in the grammar, and anything left over is filler ("the",
+// "please", "by", "percent").
+final class VoiceCommandParser {
+    // Confidence assumed for the top hypothesis when the recognizer gives
+    // none; each later one gets less
+    private static final float UNSCORED_CONFIDENCE = 0.5f;
+    // "turn off the lights" is less sure than naming the lamp
+    private static final float IMPLIED_TARGET_WEIGHT = 0.8f;
+
+    private final DeviceNameIndex names;
+
+    VoiceCommandParser(DeviceNameIndex names) {
+        this.names = names;
+    }
+
+    // Best executable reading among the recognizer's hypotheses. Each is
+    // weighted by its confidence and by how much of it the grammar could
+    // account for, so a slightly less likely transcript that names a real
+    // device beats a likelier one that doesn't. Confidences may be null.
+    VoiceCommand parseBest(List<String> hypotheses, float[] confidences) {
+        VoiceCommand best = null;
+        float bestScore = 0;
+        for (int i = 0; i < hypotheses.size(); i++) {
+            VoiceCommand command = parse(hypotheses.get(i));
+            if (command == null) {
+                continue;
+            }
+            float confidence = confidences != null && i < confidences.length && confidences[i] >= 0
+                    ? confidences[i]
+                    : UNSCORED_CONFIDENCE / (i + 1);
+            float score = confidence * command.getCoverage() * (command.hasExplicitTarget() ? 1f : IMPLIED_TARGET_WEIGHT);
+            if (best == null || score > bestScore) {
+                best = command;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    // Null if the utterance has no action or names no device the app knows
+    VoiceCommand parse(String text) {
+        List<String> tokens = VoiceGrammar.tokenize(text);
+
+        VoiceCommand.Action action = null;
+        VoiceCommand.Property property = null;
+        DeviceType type = null;
+        Integer value = null;
+        boolean absolute = false;
+        boolean all = false;
+        boolean lastWasNumber = false;
+        // The action came from a noun used as a verb; a real action word wins
+        boolean nounAction = false;
+        // The utterance ends on a name that a further word could extend
+        boolean openName = false;
+        int matchedWords = 0;
+        Set<String> named = new LinkedHashSet<>();
+        Set<String> rooms = new LinkedHashSet<>();
+
+        int i = 0;
+        while (i < tokens.size()) {
+            DeviceNameIndex.Match match = names.longestMatch(tokens, i);
+            if (match != null) {
+                if (!match.deviceIds.isEmpty()) {
+                    named.addAll(match.deviceIds);
+                } else {
+                    rooms.add(match.room);
+                }
+                i += match.length;
+                matchedWords += match.length;
+                openName = i == tokens.size() && match.extendable;
+                lastWasNumber = false;
+                continue;
+            }
+
+            String token = tokens.get(i++);
+            int digits = VoiceGrammar.parseDigits(token);
+            if (digits >= 0) {
+                matchedWords++;
+                value = digits;
+                lastWasNumber = true;
+                continue;
+            }
+            VoiceGrammar.Word word = VoiceGrammar.lookup(token);
+            if (word == null) {
+                lastWasNumber = false;
+                continue;
+            }
+            matchedWords++;
+            switch (word.kind) {
+                case ACTION:
+                    // "set" and friends only say a change is wanted; any
+                    // more specific verb takes over
+                    if (action == null || action == VoiceCommand.Action.SET || nounAction) {
+                        action = word.action;
+                        nounAction = false;
+                    }
+                    if (word.property != null && property == null) {
+                        property = word.property;
+                    }
+                    if (word.deviceType != null && type == null) {
+                        type = word.deviceType;
+                    }
+                    break;
+                case PROPERTY:
+                    property = word.property;
+                    break;
+                case DEVICE_TYPE:
+                    type = word.deviceType;
+                    if (word.action != null && action == null && matchedWords == 1) {
+                        action = word.action;
+                        nounAction = true;
+                    }
+                    break;
+                case NUMBER:
+                    // "twenty five" is 25
+                    if (lastWasNumber && value != null && value >= 20 && value % 10 == 0 && word.number < 10) {
+                        value += word.number;
+                    } else {
+                        value = word.number;
+                    }
+                    break;
+                case HUNDRED:
+                    value = (lastWasNumber && value != null ? value : 1) * 100;
+                    break;
+                case TO:
+                    absolute = true;
+                    break;
+                case ALL:
+                    all = true;
+                    break;
+            }
+            lastWasNumber = word.kind == VoiceGrammar.Kind.NUMBER || word.kind == VoiceGrammar.Kind.HUNDRED;
+        }
+
+        List<String> targets = resolveTargets(named, rooms, type, property, all);
+        if (targets.isEmpty()) {
+            return null;
+        }
+
+        if (value != null) {
+            // "turn the lamp on at 40" and "raise the heat to 22" give a target
+            // value; a bare number after "raise" or "dim" is a step
+            if (action == null || action == VoiceCommand.Action.TURN_ON || absolute) {
+                action = VoiceCommand.Action.SET;
+            }
+            if (property == null || property == VoiceCommand.Property.POWER) {
+                property = propertyFor(type != null ? type : names.typeOf(targets.get(0)));
+            }
+        } else if (action == VoiceCommand.Action.TURN_ON || action == VoiceCommand.Action.TURN_OFF
+                || action == VoiceCommand.Action.TOGGLE) {
+            property = VoiceCommand.Property.POWER;
+        } else if (action != null && property == null) {
+            property = propertyFor(type != null ? type : names.typeOf(targets.get(0)));
+        }
+
+        if (action == null || property == null
+                || (action == VoiceCommand.Action.SET && value == null)) {
+            return null;
+        }
+        float coverage = (float) matchedWords / tokens.size();
+        // A room can still be narrowed by a type word ("the kitchen" ...
+        // "lights"), and a name by a longer name
+        boolean settled = !named.isEmpty() && rooms.isEmpty() && !openName;
+        return new VoiceCommand(text, action, property, value, targets, coverage,
+                !named.isEmpty() || !rooms.isEmpty(), settled);
+    }
+
+    // Named devices, plus whole rooms narrowed by type when one was said.
+    // Without either, the type, the property's usual device, or "all" decide.
+    // Locks are only reached by name or by a lock word: "unlock" is
+    // TURN_OFF, so "turn off the kitchen" must not open its door.
+    private List<String> resolveTargets(Set<String> named, Set<String> rooms, DeviceType type,
+            VoiceCommand.Property property, boolean all) {
+        Set<String> targets = new LinkedHashSet<>(named);
+        for (String room : rooms) {
+            for (String id : names.idsInRoom(room)) {
+                if (matchesScope(id, type)) {
+                    targets.add(id);
+                }
+            }
+        }
+        if (named.isEmpty() && rooms.isEmpty()) {
+            DeviceType implied = type != null ? type : typeFor(property);
+            if (implied != null) {
+                targets.addAll(names.idsOfType(implied));
+            } else if (all) {
+                for (String id : names.allIds()) {
+                    if (matchesScope(id, null)) {
+                        targets.add(id);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(targets);
+    }
+
+    // Whether a device swept up by a room or "all" is meant: the spoken
+    // type if there was one, otherwise anything but a lock
+    private boolean matchesScope(String id, DeviceType type) {
+        DeviceType deviceType = names.typeOf(id);
+        return type != null ? deviceType == type : deviceType != DeviceType.LOCK;
+    }
+
+    private static VoiceCommand.Property propertyFor(DeviceType type) {
+        if (type == null) {
+            return null;
+        }
+        switch (type) {
+            case LIGHT:
+                return VoiceCommand.Property.BRIGHTNESS;
+            case THERMOSTAT:
+                return VoiceCommand.Property.TEMPERATURE;
+            case SPEAKER:
+                return VoiceCommand.Property.VOLUME;
+            case FAN:
+                return VoiceCommand.Property.SPEED;
+            default:
+                return null;
+        }
+    }
+
+    private static DeviceType typeFor(VoiceCommand.Property property) {
+        if (property == null) {
+            return null;
+        }
+        switch (property) {
+            case BRIGHTNESS:
+                return DeviceType.LIGHT;
+            case TEMPERATURE:
+                return DeviceType.THERMOSTAT;
+            case VOLUME:
+                return DeviceType.SPEAKER;
+            case SPEED:
+                return DeviceType.FAN;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.homie.voice;
+
+import com.example.homie.model.DeviceType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Fixed vocabulary of the command language, compiled once into a word table
+// so an utterance is classified with one map lookup per word. Anything not in
+// the table is either part of a device or room name or filler.
+final class VoiceGrammar {
+
+    enum Kind {
+        ACTION,
+        PROPERTY,
+        DEVICE_TYPE,
+        NUMBER,
+        // "hundred", multiplies the number before it
+        HUNDRED,
+        // "to" or "at": the number is a target, not a step
+        TO,
+        ALL
+    }
+
+    static final class Word {
+        final Kind kind;
+        final VoiceCommand.Action action;
+        final VoiceCommand.Property property;
+        final DeviceType deviceType;
+        final int number;
+
+        private Word(Kind kind, VoiceCommand.Action action, VoiceCommand.Property property,
+                DeviceType deviceType, int number) {
+            this.kind = kind;
+            this.action = action;
+            this.property = property;
+            this.deviceType = deviceType;
+            this.number = number;
+        }
+    }
+
+    private static final Map<String, Word> WORDS = new HashMap<>();
+
+    static {
+        action(VoiceCommand.Action.TURN_ON, "on", "start", "enable");
+        action(VoiceCommand.Action.TURN_OFF, "off", "stop", "disable");
+        action(VoiceCommand.Action.TOGGLE, "toggle", "flip");
+        action(VoiceCommand.Action.SET, "set", "change", "make");
+        action(VoiceCommand.Action.INCREASE, "increase", "raise", "up", "higher", "more");
+        action(VoiceCommand.Action.DECREASE, "decrease", "lower", "reduce", "down", "less");
+
+        // Words that name both the adjustment and what it adjusts
+        word("dim", new Word(Kind.ACTION, VoiceCommand.Action.DECREASE, VoiceCommand.Property.BRIGHTNESS, null, 0));
+        word("brighten", new Word(Kind.ACTION, VoiceCommand.Action.INCREASE, VoiceCommand.Property.BRIGHTNESS, null, 0));
+        word("brighter", new Word(Kind.ACTION, VoiceCommand.Action.INCREASE, VoiceCommand.Property.BRIGHTNESS, null, 0));
+        word("louder", new Word(Kind.ACTION, VoiceCommand.Action.INCREASE, VoiceCommand.Property.VOLUME, null, 0));
+        word("quieter", new Word(Kind.ACTION, VoiceCommand.Action.DECREASE, VoiceCommand.Property.VOLUME, null, 0));
+        word("warmer", new Word(Kind.ACTION, VoiceCommand.Action.INCREASE, VoiceCommand.Property.TEMPERATURE, null, 0));
+        word("cooler", new Word(Kind.ACTION, VoiceCommand.Action.DECREASE, VoiceCommand.Property.TEMPERATURE, null, 0));
+        word("faster", new Word(Kind.ACTION, VoiceCommand.Action.INCREASE, VoiceCommand.Property.SPEED, null, 0));
+        word("slower", new Word(Kind.ACTION, VoiceCommand.Action.DECREASE, VoiceCommand.Property.SPEED, null, 0));
+        // A lock is on while locked. "unlock" also says what it applies to.
+        word("unlock", new Word(Kind.ACTION, VoiceCommand.Action.TURN_OFF, null, DeviceType.LOCK, 0));
+
+        property(VoiceCommand.Property.BRIGHTNESS, "brightness", "bright");
+        property(VoiceCommand.Property.TEMPERATURE, "temperature", "temp", "heat", "degrees", "degree");
+        property(VoiceCommand.Property.VOLUME, "volume", "sound");
+        property(VoiceCommand.Property.SPEED, "speed");
+
+        type(DeviceType.LIGHT, "light", "lights", "lamp", "lamps");
+        type(DeviceType.FAN, "fan", "fans");
+        type(DeviceType.THERMOSTAT, "thermostat", "thermostats", "heater", "heating");
+        type(DeviceType.SPEAKER, "speaker", "speakers", "music");
+        type(DeviceType.LOCK, "locks", "door", "doors");
+        // Noun or verb: the parser treats it as the action when it opens
+        // the command ("lock the door") and as the device otherwise
+        word("lock", new Word(Kind.DEVICE_TYPE, VoiceCommand.Action.TURN_ON, null, DeviceType.LOCK, 0));
+
+        word("to", new Word(Kind.TO, null, null, null, 0));
+        word("at", new Word(Kind.TO, null, null, null, 0));
+        word("all", new Word(Kind.ALL, null, null, null, 0));
+        word("every", new Word(Kind.ALL, null, null, null, 0));
+        word("everything", new Word(Kind.ALL, null, null, null, 0));
+
+        String[] units = { "zero", "one", "two", "three", "four", "five", "six", "seven", "eight", "nine",
+                "ten", "eleven", "twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen",
+                "eighteen", "nineteen" };
+        for (int i = 0; i < units.length; i++) {
+            number(units[i], i);
+        }
+        String[] tens = { "twenty", "thirty", "forty", "fifty", "sixty", "seventy", "eighty", "ninety" };
+        for (int i = 0; i < tens.length; i++) {
+            number(tens[i], (i + 2) * 10);
+        }
+        number("half", 50);
+        number("max", 100);
+        number("maximum", 100);
+        number("full", 100);
+        number("min", 0);
+        number("minimum", 0);
+        word("hundred", new Word(Kind.HUNDRED, null, null, null, 100));
+    }
+
+    private VoiceGrammar() {
+    }
+
+    // Null for words the grammar doesn't know
+    static Word lookup(String token) {
+        return WORDS.get(token);
+    }
+
+    // Lower-case runs of letters or digits. "50%" gives "50" and
+    // "living-room" gives "living", "room"; apostrophes are dropped so
+    // "it's" stays one word.
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean digits = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\'' || c == '\u2019') {
+                continue;
+            }
+            boolean isDigit = Character.isDigit(c);
+            boolean isLetter = Character.isLetter(c);
+            if ((!isDigit && !isLetter) || (current.length() > 0 && isDigit != digits)) {
+                flush(current, tokens);
+            }
+            if (isDigit || isLetter) {
+                current.append(Character.toLowerCase(c));
+                digits = isDigit;
+            }
+        }
+        flush(current, tokens);
+        return tokens;
+    }
+
+    // Value of an all-digit token, or -1 if it isn't one
+    static int parseDigits(String token) {
+        if (token.isEmpty() || token.length() > 6) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void flush(StringBuilder current, List<String> tokens) {
+        if (current.length() > 0) {
+            tokens.add(current.toString());
+            current.setLength(0);
+        }
+    }
+
+    private static void action(VoiceCommand.Action action, String... tokens) {
+        for (String token : tokens) {
+            word(token, new Word(Kind.ACTION, action, null, null, 0));
+        }
+    }
+
+    private static void property(VoiceCommand.Property property, String... tokens) {
+        for (String token : tokens) {
+            word(token, new Word(Kind.PROPERTY, null, property, null, 0));
+        }
+    }
+
+    private static void type(DeviceType deviceType, String... tokens) {
+        for (String token : tokens) {
+            word(token, new Word(Kind.DEVICE_TYPE, null, null, deviceType, 0));
+        }
+    }
+
+    private static void number(String token, int value) {
+        word(token, new Word(Kind.NUMBER, null, null, null, value));
+    }
+
+    private static void word(String token, Word word) {
+        WORDS.put(token, word);
+    }
+}